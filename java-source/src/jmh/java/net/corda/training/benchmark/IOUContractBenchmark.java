@@ -0,0 +1,89 @@
+package net.corda.training.benchmark;
+
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.training.contract.IOUContract;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures [IOUContract.verify], which every signer and every validating notary runs on each IOU transaction.
+ * Run with the GC profiler (configured in build.gradle) to report the allocation rate alongside ns/op.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IOUContractBenchmark {
+    private static final IOUContract contract = new IOUContract();
+
+    @State(Scope.Benchmark)
+    public static class IssueTransaction {
+        @Param({"1", "10", "100", "1000"})
+        public int groups;
+        LedgerTransaction tx;
+
+        @Setup
+        public void setup() {
+            tx = new IOULedgerTransactions().issue(groups);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class TransferTransaction {
+        @Param({"1", "10", "100", "1000"})
+        public int groups;
+        LedgerTransaction tx;
+
+        @Setup
+        public void setup() {
+            tx = new IOULedgerTransactions().transfer(groups);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SettleTransaction {
+        @Param({"1", "10", "100", "1000"})
+        public int groups;
+        LedgerTransaction tx;
+
+        @Setup
+        public void setup() {
+            tx = new IOULedgerTransactions().settle(groups, 1);
+        }
+    }
+
+    /** A single IOU settled by a payment split into many cash states. */
+    @State(Scope.Benchmark)
+    public static class FragmentedSettleTransaction {
+        @Param({"100", "500", "1000"})
+        public int cashOutputs;
+        LedgerTransaction tx;
+
+        @Setup
+        public void setup() {
+            tx = new IOULedgerTransactions().settle(1, cashOutputs);
+        }
+    }
+
+    @Benchmark
+    public void verifyIssue(IssueTransaction state) {
+        contract.verify(state.tx);
+    }
+
+    @Benchmark
+    public void verifyTransfer(TransferTransaction state) {
+        contract.verify(state.tx);
+    }
+
+    @Benchmark
+    public void verifySettle(SettleTransaction state) {
+        contract.verify(state.tx);
+    }
+
+    @Benchmark
+    public void verifyFragmentedSettle(FragmentedSettleTransaction state) {
+        contract.verify(state.tx);
+    }
+}
@@ -0,0 +1,120 @@
+package net.corda.training.benchmark;
+
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.finance.Currencies;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.IOUState;
+import net.corda.training.state.IOUStateSerializer;
+import net.corda.training.state.PartyInterner;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.function.Function;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.benchmark.IOULedgerTransactions.ALICE;
+
+/**
+ * Compares the heap held by a vault's worth of deserialized IOUs with and without party interning.
+ *
+ * Every IOU is serialized on its own, as it is when stored in the vault or fetched as part of a back-chain, so each
+ * deserialized copy starts with its own {@link Party} graph. The "plain" run keeps the deserialized proxies, whose
+ * parties are not interned; the "interned" run converts each proxy into an {@link IOUState} and interns its parties
+ * with the {@link PartyInterner}, as the {@link net.corda.training.service.IOUIndexService} does.
+ * Each run prints the distinct instances of the party classes and the used heap after a GC. Pass --pause to wait
+ * after each run so that a histogram can be taken with `jmap -histo:live <pid>`. It reports heap rather than timings,
+ * so it is a plain program rather than a JMH benchmark; run it from the JMH jar:
+ *
+ *     ./gradlew java-source:jmhJar
+ *     java -Xmx4g -cp java-source/build/libs/java-source-jmh.jar net.corda.training.benchmark.IOUHeapBenchmark 500000 --pause
+ *
+ * Do not use in a production environment.
+ */
+public class IOUHeapBenchmark {
+    private static final int COUNTERPARTIES = 12;
+
+    public static void main(String[] args) throws Exception {
+        int size = 500_000;
+        boolean pause = false;
+        for (String arg : args) {
+            if (arg.equals("--pause")) pause = true;
+            else size = Integer.parseInt(arg);
+        }
+
+        List<TestIdentity> lenders = new ArrayList<>();
+        for (int i = 0; i < COUNTERPARTIES; i++) {
+            lenders.add(new TestIdentity(new CordaX500Name("Lender" + i, "London", "GB")));
+        }
+
+        final int count = size;
+        final boolean waitForHistogram = pause;
+        MockServices services = new MockServices(Collections.singletonList("net.corda.training"), ALICE);
+        // The ledger DSL sets up a serialization environment for the duration of the script.
+        ledger(services, l -> {
+            IOUStateSerializer serializer = new IOUStateSerializer();
+            SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+            List<SerializedBytes<IOUStateSerializer.Proxy>> blobs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                IOUState state = new IOUState(Currencies.POUNDS(100 + i % 1000),
+                        lenders.get(i % COUNTERPARTIES).getParty(), ALICE.getParty());
+                blobs.add(factory.serialize(serializer.toProxy(state), SerializationDefaults.INSTANCE.getP2P_CONTEXT()));
+            }
+            System.out.println("PID " + pid() + ", " + count + " IOUs.");
+
+            List<IOUStateSerializer.Proxy> plain = new ArrayList<>(count);
+            for (SerializedBytes<IOUStateSerializer.Proxy> blob : blobs) plain.add(deserialize(factory, blob));
+            report("plain", plain, proxy -> proxy.lender, proxy -> proxy.borrower, waitForHistogram);
+            plain = null;
+
+            List<IOUState> interned = new ArrayList<>(count);
+            for (SerializedBytes<IOUStateSerializer.Proxy> blob : blobs) {
+                interned.add(PartyInterner.intern(serializer.fromProxy(deserialize(factory, blob))));
+            }
+            report("interned", interned, IOUState::getLender, IOUState::getBorrower, waitForHistogram);
+            return null;
+        });
+    }
+
+    private static IOUStateSerializer.Proxy deserialize(SerializationFactory factory, SerializedBytes<IOUStateSerializer.Proxy> blob) {
+        return factory.deserialize(blob, IOUStateSerializer.Proxy.class, SerializationDefaults.INSTANCE.getP2P_CONTEXT());
+    }
+
+    private static <T> void report(String label, List<T> held, Function<T, Party> lender, Function<T, Party> borrower,
+                                   boolean waitForHistogram) {
+        Set<Object> parties = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Object> names = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Object> keys = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (T item : held) {
+            for (Party party : Arrays.asList(lender.apply(item), borrower.apply(item))) {
+                parties.add(party);
+                names.add(party.getName());
+                keys.add(party.getOwningKey());
+            }
+        }
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long usedMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        System.out.println(String.format("%-9s Party: %8d  CordaX500Name: %8d  PublicKey: %8d  used heap: %6d MB",
+                label, parties.size(), names.size(), keys.size(), usedMb));
+        if (waitForHistogram) {
+            System.out.println("Take the histogram now, then press enter to continue.");
+            try {
+                System.in.read();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** The JVM's process id, without relying on Java 9's ProcessHandle. */
+    private static String pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return name.substring(0, name.indexOf('@'));
+    }
+}
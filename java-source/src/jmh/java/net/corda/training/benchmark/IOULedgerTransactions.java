@@ -0,0 +1,100 @@
+package net.corda.training.benchmark;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+
+import java.util.Arrays;
+import java.util.Currency;
+
+/**
+ * Builds realistic IOU [LedgerTransaction]s for the contract benchmarks, resolving inputs through {@link MockServices}
+ * in the same way as the contract tests do. Each transaction holds [groups] independent IOUs, i.e. one group of
+ * inputs and outputs per [linearId].
+ */
+class IOULedgerTransactions {
+    static final TestIdentity ALICE = new TestIdentity(new CordaX500Name("Alice", "TestLand", "US"));
+    static final TestIdentity BOB = new TestIdentity(new CordaX500Name("Bob", "TestCity", "US"));
+    static final TestIdentity CHARLIE = new TestIdentity(new CordaX500Name("Charlie", "TestVillage", "US"));
+    static final TestIdentity NOTARY = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+
+    private static final Currency GBP = Currency.getInstance("GBP");
+    private static final long IOU_QUANTITY = 10_000L;
+
+    private final MockServices services = new MockServices(
+            Arrays.asList("net.corda.training", "net.corda.finance.contracts"));
+
+    /** [groups] new IOUs from Alice (borrower) to Bob (lender). */
+    LedgerTransaction issue(int groups) {
+        return toLedgerTransaction(issueBuilder(groups));
+    }
+
+    /** [groups] IOUs moved from Bob to Charlie. */
+    LedgerTransaction transfer(int groups) {
+        SignedTransaction issued = record(issueBuilder(groups));
+        TransactionBuilder builder = new TransactionBuilder(NOTARY.getParty())
+                .addCommand(new IOUContract.Commands.Transfer(),
+                        ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey());
+        for (int i = 0; i < groups; i++) {
+            StateAndRef<IOUState> input = issued.getTx().outRef(i);
+            builder.addInputState(input);
+            builder.addOutputState(input.getState().getData().withNewLender(CHARLIE.getParty()), IOUContract.IOU_CONTRACT_ID);
+        }
+        return toLedgerTransaction(builder);
+    }
+
+    /**
+     * [groups] IOUs each half paid off by Alice. The payment to Bob is split into [cashOutputsPerGroup] cash states
+     * per IOU.
+     */
+    LedgerTransaction settle(int groups, int cashOutputsPerGroup) {
+        SignedTransaction issued = record(issueBuilder(groups));
+        long payment = IOU_QUANTITY / 2;
+        TransactionBuilder builder = new TransactionBuilder(NOTARY.getParty())
+                .addCommand(new IOUContract.Commands.Settle(), ALICE.getPublicKey(), BOB.getPublicKey());
+        for (int i = 0; i < groups; i++) {
+            StateAndRef<IOUState> input = issued.getTx().outRef(i);
+            builder.addInputState(input);
+            builder.addOutputState(input.getState().getData().pay(new Amount<>(payment, GBP)), IOUContract.IOU_CONTRACT_ID);
+            for (int j = 0; j < cashOutputsPerGroup; j++) {
+                long quantity = payment / cashOutputsPerGroup + (j < payment % cashOutputsPerGroup ? 1 : 0);
+                builder.addOutputState(new Cash.State(ALICE.getParty().ref(OpaqueBytes.of((byte) 1)),
+                        new Amount<>(quantity, GBP), BOB.getParty()), Cash.PROGRAM_ID);
+            }
+        }
+        return toLedgerTransaction(builder);
+    }
+
+    private TransactionBuilder issueBuilder(int groups) {
+        TransactionBuilder builder = new TransactionBuilder(NOTARY.getParty())
+                .addCommand(new IOUContract.Commands.Issue(), ALICE.getPublicKey(), BOB.getPublicKey());
+        for (int i = 0; i < groups; i++) {
+            builder.addOutputState(new IOUState(new Amount<>(IOU_QUANTITY, GBP), BOB.getParty(), ALICE.getParty()),
+                    IOUContract.IOU_CONTRACT_ID);
+        }
+        return builder;
+    }
+
+    private SignedTransaction record(TransactionBuilder builder) {
+        SignedTransaction stx = services.signInitialTransaction(builder);
+        services.recordTransactions(stx);
+        return stx;
+    }
+
+    private LedgerTransaction toLedgerTransaction(TransactionBuilder builder) {
+        try {
+            return builder.toLedgerTransaction(services);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not resolve the benchmark transaction.", e);
+        }
+    }
+}
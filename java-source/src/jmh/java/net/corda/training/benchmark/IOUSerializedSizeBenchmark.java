@@ -0,0 +1,84 @@
+package net.corda.training.benchmark;
+
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.finance.Currencies;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.IOUState;
+import net.corda.training.state.IOUStateSerializer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.benchmark.IOULedgerTransactions.ALICE;
+
+/**
+ * Reports the AMQP size of the IOU outputs of a transaction in the default field-by-field form and in the compact
+ * {@link IOUStateSerializer} form, for transactions of many states sharing a dozen counterparties.
+ *
+ * A transaction serializes each output as its own component, so each state is serialized on its own here and the
+ * sizes summed; nothing is shared between states. The test serialization environment does not load CorDapp custom
+ * serializers, so this measures the {@link IOUState} itself against its proxy rather than whole transactions.
+ *
+ * It reports sizes rather than timings, so it is a plain program rather than a JMH benchmark. Run it from the JMH jar,
+ * optionally passing the number of states per transaction as arguments:
+ *
+ *     ./gradlew java-source:jmhJar
+ *     java -cp java-source/build/libs/java-source-jmh.jar net.corda.training.benchmark.IOUSerializedSizeBenchmark 1 10 100 1000
+ *
+ * Do not use in a production environment.
+ */
+public class IOUSerializedSizeBenchmark {
+    private static final int COUNTERPARTIES = 12;
+
+    public static void main(String[] args) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String arg : args) sizes.add(Integer.parseInt(arg));
+        if (sizes.isEmpty()) sizes = Arrays.asList(1, 10, 100, 1000);
+
+        List<TestIdentity> lenders = new ArrayList<>();
+        for (int i = 0; i < COUNTERPARTIES; i++) {
+            lenders.add(new TestIdentity(new CordaX500Name("Lender" + i, "London", "GB")));
+        }
+
+        final List<Integer> statesPerTransaction = sizes;
+        MockServices services = new MockServices(Collections.singletonList("net.corda.training"), ALICE);
+        // The ledger DSL sets up a serialization environment for the duration of the script.
+        ledger(services, l -> {
+            IOUStateSerializer serializer = new IOUStateSerializer();
+            System.out.println(String.format("%8s %14s %14s %14s %14s",
+                    "states", "default bytes", "compact bytes", "default/state", "compact/state"));
+            for (int count : statesPerTransaction) {
+                List<IOUState> states = new ArrayList<>(count);
+                List<IOUStateSerializer.Proxy> proxies = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    IOUState state = new IOUState(Currencies.POUNDS(100 + i),
+                            lenders.get(i % COUNTERPARTIES).getParty(), ALICE.getParty()).pay(Currencies.POUNDS(i % 100));
+                    states.add(state);
+                    proxies.add(serializer.toProxy(state));
+                }
+                int defaultBytes = totalSize(states);
+                int compactBytes = totalSize(proxies);
+                System.out.println(String.format("%8d %14d %14d %14.1f %14.1f",
+                        count, defaultBytes, compactBytes, (double) defaultBytes / count, (double) compactBytes / count));
+            }
+            return null;
+        });
+    }
+
+    /** The total size of the objects serialized one by one, as a transaction's output components are. */
+    private static int totalSize(List<?> objects) {
+        int total = 0;
+        for (Object obj : objects) {
+            total += SerializationFactory.Companion.getDefaultFactory()
+                    .serialize(obj, SerializationDefaults.INSTANCE.getP2P_CONTEXT())
+                    .getSize();
+        }
+        return total;
+    }
+}
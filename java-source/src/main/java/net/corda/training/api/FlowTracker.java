@@ -0,0 +1,74 @@
+package net.corda.training.api;
+
+import net.corda.core.messaging.FlowProgressHandle;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Records the status of the flows started through {@link IOUApi}, so that the web endpoints can return as soon as a
+ * flow has started and let clients poll for the outcome instead of holding a Jetty thread until it finishes.
+ *
+ * Statuses are updated from each flow's progress observable and return value future. Only the most recently
+ * started flows are kept.
+ */
+class FlowTracker {
+    private static final int MAX_TRACKED_FLOWS = 10_000;
+
+    enum Status { RUNNING, COMPLETED, FAILED }
+
+    private static class TrackedFlow {
+        volatile Status status = Status.RUNNING;
+        volatile String progress;
+        volatile String result;
+    }
+
+    private final Map<String, TrackedFlow> flows = Collections.synchronizedMap(
+            new LinkedHashMap<String, TrackedFlow>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TrackedFlow> eldest) {
+                    return size() > MAX_TRACKED_FLOWS;
+                }
+            });
+
+    /**
+     * Starts tracking a flow and returns its run id. [describeResult] turns the flow's return value into the
+     * message reported once the flow completes.
+     */
+    <T> String track(FlowProgressHandle<T> handle, Function<T, String> describeResult) {
+        String id = handle.getId().getUuid().toString();
+        TrackedFlow flow = new TrackedFlow();
+        flows.put(id, flow);
+
+        handle.getProgress().subscribe(step -> flow.progress = step, error -> {});
+        handle.getReturnValue().then(future -> {
+            try {
+                flow.result = describeResult.apply(future.get());
+                flow.status = Status.COMPLETED;
+            } catch (ExecutionException e) {
+                flow.result = e.getCause().getMessage();
+                flow.status = Status.FAILED;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        return id;
+    }
+
+    /** The status of the flow with the given run id, or null if it isn't (or is no longer) tracked. */
+    Map<String, String> status(String id) {
+        TrackedFlow flow = flows.get(id);
+        if (flow == null) return null;
+        HashMap<String, String> myMap = new HashMap<>();
+        myMap.put("id", id);
+        myMap.put("status", flow.status.name());
+        myMap.put("progress", flow.progress);
+        myMap.put("result", flow.result);
+        return myMap;
+    }
+}
@@ -1,10 +1,19 @@
 package net.corda.training.api;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.corda.client.jackson.JacksonSupport;
 import net.corda.core.contracts.*;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.FlowProgressHandle;
 import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.internal.InternalUtils;
 import net.corda.core.internal.FetchDataFlow.Result;
@@ -16,16 +25,25 @@ import net.corda.training.flow.IOUIssueFlow;
 import net.corda.training.flow.IOUSettleFlow;
 import net.corda.training.flow.IOUTransferFlow;
 import net.corda.training.flow.SelfIssueCashFlow;
+import net.corda.training.schema.IOUSchemaV1;
+import net.corda.training.service.CashBalances;
+import net.corda.training.service.Exposures;
 import net.corda.training.state.IOUState;
 
 import java.util.*;
+import com.google.common.collect.ImmutableSet;
 import org.bouncycastle.asn1.x500.X500Name;
+import org.glassfish.jersey.server.ChunkedOutput;
 import org.bouncycastle.asn1.x500.style.BCStyle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -37,12 +55,27 @@ import java.util.stream.Stream;
 public class IOUApi {
     private final CordaRPCOps rpcOps;
     private final CordaX500Name me;
+    private final ObjectMapper mapper;
+    private final CashBalances cashBalances = new CashBalances();
+    private final Exposures exposures;
+    private final VaultUpdateBroadcaster broadcaster;
+    private final FlowTracker flowTracker = new FlowTracker();
+    private final NetworkMapView networkMap;
 
     private static final Logger logger = LoggerFactory.getLogger(IOUApi.class);
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String SERVER_SENT_EVENTS = "text/event-stream";
+    private static final Sort SORT_BY_STATE_REF = new Sort(ImmutableSet.of(new Sort.SortColumn(
+            new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF), Sort.Direction.ASC)));
 
     public IOUApi(CordaRPCOps rpcOps) {
         this.rpcOps = rpcOps;
         this.me = rpcOps.nodeInfo().getLegalIdentities().get(0).getName();
+        this.mapper = JacksonSupport.createDefaultMapper(rpcOps);
+        this.exposures = new Exposures(me);
+        this.broadcaster = new VaultUpdateBroadcaster(rpcOps, mapper, cashBalances, exposures);
+        this.networkMap = new NetworkMapView(rpcOps, me);
     }
 
     /** Helpers for filtering the network map cache. */
@@ -50,20 +83,6 @@ public class IOUApi {
         return BCStyle.INSTANCE.toString(name);
     }
 
-    private boolean isNotary(NodeInfo nodeInfo) {
-        return !rpcOps.notaryIdentities()
-                .stream().filter(el -> nodeInfo.isLegalIdentity(el))
-                .collect(Collectors.toList()).isEmpty();
-    }
-
-    private boolean isMe(NodeInfo nodeInfo){
-        return nodeInfo.getLegalIdentities().get(0).getName().equals(me);
-    }
-
-    private boolean isNetworkMap(NodeInfo nodeInfo){
-        return nodeInfo.getLegalIdentities().get(0).getName().getOrganisation().equals("Network Map Service");
-    }
-
     /**
      * Returns the node's name.
      */
@@ -86,84 +105,247 @@ public class IOUApi {
     public HashMap<String, List<String>> getPeers() {
         HashMap<String, List<String>> myMap = new HashMap<>();
 
-        // Find all nodes that are not notaries, ourself, or the network map.
-        Stream<NodeInfo> filteredNodes = rpcOps.networkMapSnapshot().stream()
-                .filter(el -> !isNotary(el) && !isMe(el) && !isNetworkMap(el));
-        // Get their names as strings
-        List<String> nodeNames = filteredNodes.map(el -> el.getLegalIdentities().get(0).getName().toString())
-                .collect(Collectors.toList());
-
+        // Nodes that are not notaries, ourself, or the network map, as maintained by the network map view.
+        List<String> nodeNames = networkMap.getPeerNames();
         myMap.put("peers", nodeNames);
         return myMap;
     }
 
     /**
      * Task 1
-     * Displays all IOU states that exist in the node's vault.
-     * TODO: Return a list of IOUStates on ledger
-     * Hint - Use [rpcOps] to query the vault all unconsumed [IOUState]s
+     * Displays the IOU states that exist in the node's vault, one page at a time.
+     * Pass the returned [nextCursor] back as [cursor] to fetch the following page; it is null on the last page. The
+     * pages show the vault as it stood when the first one was served, including IOUs consumed since.
+     * Optionally only IOUs in [currency], with at least [minOutstanding] and/or at most [maxOutstanding] still to pay
+     * (in units of the currency, e.g. pounds), are returned. The filters must be repeated along with each cursor.
+     * Example request:
+     * curl 'http://localhost:10007/api/iou/ious?currency=GBP&minOutstanding=1000000'
      */
     @GET
     @Path("ious")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<StateAndRef<IOUState>> getIOUs() {
-        // Filter by state type: IOU.
-        return rpcOps.vaultQuery(IOUState.class).getStates();
+    public Response getIOUs(@QueryParam(value = "pageSize") @DefaultValue("50") int pageSize,
+                            @QueryParam(value = "cursor") String cursor,
+                            @QueryParam(value = "currency") String currency,
+                            @QueryParam(value = "minOutstanding") BigDecimal minOutstanding,
+                            @QueryParam(value = "maxOutstanding") BigDecimal maxOutstanding) {
+        // Filter by state type: IOU, and by the outstanding amount columns of the IOU schema.
+        final QueryCriteria filter;
+        try {
+            filter = outstandingFilter(currency, minOutstanding, maxOutstanding);
+        } catch (IllegalArgumentException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
+        return vaultPage(IOUState.class, filter, pageSize, cursor);
     }
 
     /**
-     * Displays all cash states that exist in the node's vault.
+     * The custom query criteria selecting IOUs by currency and outstanding quantity, or null if there is no filter.
+     * Outstanding quantities are only comparable within a currency, so a range needs a currency too.
+     */
+    private static QueryCriteria outstandingFilter(String currencyCode, BigDecimal minOutstanding, BigDecimal maxOutstanding) {
+        if (currencyCode == null) {
+            if (minOutstanding != null || maxOutstanding != null) {
+                throw new IllegalArgumentException("minOutstanding and maxOutstanding require a currency.");
+            }
+            return null;
+        }
+        final Currency currency;
+        try {
+            currency = Currency.getInstance(currencyCode);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown currency " + currencyCode + ".");
+        }
+        try {
+            Field currencyField = IOUSchemaV1.PersistentIOU.class.getDeclaredField("currency");
+            Field outstandingField = IOUSchemaV1.PersistentIOU.class.getDeclaredField("outstanding");
+            QueryCriteria criteria = new QueryCriteria.VaultCustomQueryCriteria(
+                    Builder.equal(currencyField, currency.getCurrencyCode()));
+            if (minOutstanding != null) {
+                criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.greaterThanOrEqual(outstandingField, Amount.fromDecimal(minOutstanding, currency).getQuantity())));
+            }
+            if (maxOutstanding != null) {
+                criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.lessThanOrEqual(outstandingField, Amount.fromDecimal(maxOutstanding, currency).getQuantity())));
+            }
+            return criteria;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Displays the cash states that exist in the node's vault, one page at a time.
      */
     @GET
     @Path("cash")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<StateAndRef<Cash.State>> getCash() {
+    public Response getCash(@QueryParam(value = "pageSize") @DefaultValue("50") int pageSize,
+                            @QueryParam(value = "cursor") String cursor) {
         // Filter by state type: Cash.
-        return rpcOps.vaultQuery(Cash.State.class).getStates();
+        return vaultPage(Cash.State.class, null, pageSize, cursor);
+    }
+
+    /**
+     * Runs a single page of a vault query over RPC. Pages are ordered by state ref and read from the vault as it stood
+     * at the cursor's snapshot, so the same cursor always refers to the same slice of the vault, however the vault
+     * changes in between. A non-null [filter] further restricts the states returned.
+     */
+    private <T extends ContractState> Response vaultPage(Class<T> contractStateType, QueryCriteria filter, int pageSize,
+                                                         String cursor) {
+        final PageCursor pageCursor;
+        try {
+            if (cursor != null) {
+                pageCursor = PageCursor.decode(cursor);
+            } else if (pageSize < 1 || pageSize > PageCursor.MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("pageSize must be between 1 and " + PageCursor.MAX_PAGE_SIZE + ".");
+            } else {
+                pageCursor = PageCursor.first(pageSize, rpcOps.currentNodeTime());
+            }
+        } catch (IllegalArgumentException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
+        QueryCriteria criteria = pageCursor.criteria();
+        if (filter != null) criteria = criteria.and(filter);
+        Vault.Page<T> page = rpcOps.vaultQueryBy(criteria,
+                new PageSpecification(pageCursor.pageNumber, pageCursor.pageSize), SORT_BY_STATE_REF, contractStateType);
+
+        boolean hasMore = (long) pageCursor.pageNumber * pageCursor.pageSize < page.getTotalStatesAvailable();
+        HashMap<String, Object> myMap = new HashMap<>();
+        myMap.put("states", page.getStates());
+        myMap.put("totalStates", page.getTotalStatesAvailable());
+        myMap.put("nextCursor", hasMore ? pageCursor.next().encode() : null);
+        return Response.ok(myMap).build();
+    }
+
+    /**
+     * Streams every IOU state in the node's vault as newline-delimited JSON, one [StateAndRef] per line.
+     */
+    @GET
+    @Path("ious/export")
+    @Produces(NDJSON)
+    public Response exportIOUs() {
+        return Response.ok(exportVault(IOUState.class)).build();
+    }
+
+    /**
+     * Streams every cash state in the node's vault as newline-delimited JSON, one [StateAndRef] per line.
+     */
+    @GET
+    @Path("cash/export")
+    @Produces(NDJSON)
+    public Response exportCash() {
+        return Response.ok(exportVault(Cash.State.class)).build();
+    }
+
+    /**
+     * Walks the vault page by page over RPC, writing each state to the response as soon as its page arrives. The
+     * response has no content length, so Jetty sends it chunked and only one page is ever held in memory. As with the
+     * paged endpoints, every page is read from the vault as it stood on the node when the export began, so states
+     * consumed during a long export are still written, once.
+     */
+    private <T extends ContractState> StreamingOutput exportVault(Class<T> contractStateType) {
+        return output -> {
+            // Export the vault as it stands now on the node, however long the export takes.
+            QueryCriteria criteria = PageCursor.asOf(rpcOps.currentNodeTime());
+            for (int pageNumber = 1; ; pageNumber++) {
+                Vault.Page<T> page = rpcOps.vaultQueryBy(criteria,
+                        new PageSpecification(pageNumber, EXPORT_PAGE_SIZE), SORT_BY_STATE_REF, contractStateType);
+                for (StateAndRef<T> stateAndRef : page.getStates()) {
+                    output.write(mapper.writeValueAsBytes(stateAndRef));
+                    output.write('\n');
+                }
+                output.flush();
+                if ((long) pageNumber * EXPORT_PAGE_SIZE >= page.getTotalStatesAvailable()) break;
+            }
+        };
+    }
+
+    /**
+     * A server-sent event stream of IOU and cash vault changes, so the front-end can apply deltas instead of
+     * re-fetching the vault. See {@link VaultUpdateBroadcaster} for the event format.
+     */
+    @GET
+    @Path("updates")
+    @Produces(SERVER_SENT_EVENTS)
+    public ChunkedOutput<String> getUpdates() {
+        return broadcaster.subscribe();
     }
 
     /**
-     * Displays all cash states that exist in the node's vault.
+     * Displays the node's cash balance in each currency. These are maintained from the cash vault feed rather than
+     * queried on each request.
      */
     @GET
     @Path("cash-balances")
     @Produces(MediaType.APPLICATION_JSON)
     // Display cash balances.
     public Map<Currency,Amount<Currency>> getCashBalances(){
-        return GetBalances.getCashBalances(rpcOps);
+        return cashBalances.getBalances();
     }
 
     /**
-     * Initiates a flow to agree an IOU between two parties.
+     * Displays the node's cash balance in each currency as a quantity in the currency's smallest unit (e.g. pence),
+     * with the version of the balances and each currency's fraction digits. The front-end formats these itself, and
+     * applies the "cash" events newer than the version on top.
+     */
+    @GET
+    @Path("cash-quantities")
+    @Produces(MediaType.APPLICATION_JSON)
+    public CashBalances.Quantities getCashQuantities() {
+        return cashBalances.getQuantities();
+    }
+
+    /**
+     * Displays our net exposure to each counterparty per currency: what they owe us on outstanding IOUs, minus what we
+     * owe them. Negative amounts are owed by us. These are maintained from the IOU vault feed rather than queried on
+     * each request, so the cost doesn't grow with the vault.
+     */
+    @GET
+    @Path("exposures")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Map<Currency, BigDecimal>> getExposures() {
+        return exposures.getExposures();
+    }
+
+    /**
+     * Initiates a flow to agree an IOU between two parties. Like the other flow endpoints it returns as soon as the
+     * flow has started; poll the returned flow id at /flows/{id} for the outcome.
      * Example request:
      * curl -X PUT 'http://localhost:10007/api/iou/issue-iou?amount=99&currency=GBP&party=O=ParticipantC,L=New%20York,C=US
      */
-//    @PUT
-//    @Path("issue-iou")
-//    public Response issueIOU(@QueryParam(value = "amount") int amount,
-//                             @QueryParam(value = "currency") String currency,
-//                             @QueryParam(value = "party") String party) throws IllegalArgumentException {
-//        // Get party objects for myself and the counterparty.
-//        Party me = rpcOps.nodeInfo().getLegalIdentities().get(0);
-//        Party lender = Optional.ofNullable(rpcOps.wellKnownPartyFromX500Name(CordaX500Name.parse(party))).orElseThrow(() -> new IllegalArgumentException("Unknown party name."));
-//        // Create a new IOU state using the parameters given.
-//        try {
-//            IOUState state = new IOUState(new Amount<>((long)amount * 100, Currency.getInstance(currency)), lender, me);
-//            // Start the IOUIssueFlow. We block and waits for the flow to return.
-//            SignedTransaction result = rpcOps.startTrackedFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state).getReturnValue().get();
-//            // Return the response.
-//            return Response
-//                    .status(Response.Status.CREATED)
-//                    .entity(String.format("Transaction id %h committed to ledger.\n%h", result.getId(), result.getTx().getOutputs().get(0)))
-//                    .build();
-//            // For the purposes of this demo app, we do not differentiate by exception type.
-//        } catch (Exception e) {
-//            return Response
-//                    .status(Response.Status.BAD_REQUEST)
-//                    .entity(e.getMessage())
-//                    .build();
-//        }
-//    }
+    @PUT
+    @Path("issue-iou")
+    public Response issueIOU(@QueryParam(value = "amount") int amount,
+                             @QueryParam(value = "currency") String currency,
+                             @QueryParam(value = "party") String party) {
+        // Get party objects for myself and the counterparty.
+        Party me = rpcOps.nodeInfo().getLegalIdentities().get(0);
+        // Create a new IOU state using the parameters given.
+        try {
+            Party lender = rpcOps.wellKnownPartyFromX500Name(CordaX500Name.parse(party));
+            if (lender == null) return unknownParty(party);
+            IOUState state = new IOUState(new Amount<>((long) amount * 100, Currency.getInstance(currency)), lender, me);
+            // Start the IOUIssueFlow without waiting for it to finish.
+            FlowProgressHandle<SignedTransaction> handle = rpcOps.startTrackedFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state);
+            return accepted(handle, result -> String.format("Transaction id %s committed to ledger.\n%s",
+                    result.getId(), result.getTx().getOutputs().get(0).getData()));
+            // For the purposes of this demo app, we do not differentiate by exception type.
+        } catch (Exception e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
+    }
 
     /**
      * Transfers an IOU specified by [linearId] to a new party.
@@ -172,10 +354,18 @@ public class IOUApi {
     @Path("transfer-iou")
     public Response transferIOU(@QueryParam(value = "id") String id,
                                 @QueryParam(value = "party") String party) {
-        return Response
-                .status(Response.Status.NOT_IMPLEMENTED)
-                .entity("Not implemented")
-                .build();
+        try {
+            Party newLender = rpcOps.wellKnownPartyFromX500Name(CordaX500Name.parse(party));
+            if (newLender == null) return unknownParty(party);
+            UniqueIdentifier linearId = UniqueIdentifier.Companion.fromString(id);
+            FlowProgressHandle<SignedTransaction> handle = rpcOps.startTrackedFlowDynamic(IOUTransferFlow.InitiatorFlow.class, linearId, newLender);
+            return accepted(handle, result -> String.format("IOU %s transferred to %s.", id, party));
+        } catch (Exception e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
     }
 
     /**
@@ -186,10 +376,17 @@ public class IOUApi {
     public Response settleIOU(@QueryParam(value = "id") String id,
                               @QueryParam(value = "amount") int amount,
                               @QueryParam(value = "currency") String currency) {
-        return Response
-                .status(Response.Status.NOT_IMPLEMENTED)
-                .entity("Not implemented")
-                .build();
+        try {
+            UniqueIdentifier linearId = UniqueIdentifier.Companion.fromString(id);
+            Amount<Currency> settleAmount = new Amount<>((long) amount * 100, Currency.getInstance(currency));
+            FlowProgressHandle<SignedTransaction> handle = rpcOps.startTrackedFlowDynamic(IOUSettleFlow.InitiatorFlow.class, linearId, settleAmount);
+            return accepted(handle, result -> String.format("%d %s paid off on IOU id %s.", amount, currency, id));
+        } catch (Exception e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
     }
 
     /**
@@ -199,9 +396,50 @@ public class IOUApi {
     @Path("self-issue-cash")
     public Response selfIssueCash(@QueryParam(value = "amount") int amount,
                                   @QueryParam(value = "currency") String currency) {
+        try {
+            Amount<Currency> issueAmount = new Amount<>((long) amount * 100, Currency.getInstance(currency));
+            FlowProgressHandle<Cash.State> handle = rpcOps.startTrackedFlowDynamic(SelfIssueCashFlow.class, issueAmount);
+            return accepted(handle, Cash.State::toString);
+        } catch (Exception e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
+    }
+
+    /**
+     * Returns the status of a flow started through this API: RUNNING (with its latest progress step), COMPLETED or
+     * FAILED (with the flow's result or error message).
+     */
+    @GET
+    @Path("flows/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getFlowStatus(@PathParam("id") String id) {
+        Map<String, String> status = flowTracker.status(id);
+        if (status == null) {
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .entity("Unknown flow id " + id + ".")
+                    .build();
+        }
+        return Response.ok(status).build();
+    }
+
+    /** Responds 202 Accepted with the id of a started flow, whose outcome is then reported by /flows/{id}. */
+    private <T> Response accepted(FlowProgressHandle<T> handle, Function<T, String> describeResult) {
+        String flowId = flowTracker.track(handle, describeResult);
+        return Response
+                .status(Response.Status.ACCEPTED)
+                .header("Location", "flows/" + flowId)
+                .entity(String.format("Flow %s started. Poll /api/iou/flows/%s for its status.", flowId, flowId))
+                .build();
+    }
+
+    private Response unknownParty(String party) {
         return Response
-                .status(Response.Status.NOT_IMPLEMENTED)
-                .entity("Not implemented")
+                .status(Response.Status.BAD_REQUEST)
+                .entity("Unknown party name " + party + ".")
                 .build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+package net.corda.training.api;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.NetworkMapCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local view of the network map, built once from [CordaRPCOps.networkMapFeed] and then kept up to date from the
+ * feed's changes. The peer list and the notary set are precomputed, so reading them costs no RPC round trips.
+ *
+ * The notary identities come from the network parameters, which only change when the node restarts, so they are
+ * read once.
+ */
+class NetworkMapView {
+    private static final Logger logger = LoggerFactory.getLogger(NetworkMapView.class);
+
+    private final CordaX500Name me;
+    private final Set<Party> notaries;
+    private final Map<CordaX500Name, NodeInfo> peers = new ConcurrentHashMap<>();
+    private volatile List<String> peerNames = ImmutableList.of();
+
+    NetworkMapView(CordaRPCOps rpcOps, CordaX500Name me) {
+        this.me = me;
+        this.notaries = ImmutableSet.copyOf(rpcOps.notaryIdentities());
+
+        DataFeed<List<NodeInfo>, NetworkMapCache.MapChange> feed = rpcOps.networkMapFeed();
+        feed.getSnapshot().forEach(this::add);
+        publish();
+        feed.getUpdates().subscribe(this::apply, e -> logger.error("Network map feed failed.", e));
+    }
+
+    /** The names of every node that is not a notary, ourself, or the network map. */
+    List<String> getPeerNames() {
+        return peerNames;
+    }
+
+    private boolean isNotary(NodeInfo nodeInfo) {
+        return nodeInfo.getLegalIdentities().stream().anyMatch(notaries::contains);
+    }
+
+    private boolean isMe(NodeInfo nodeInfo){
+        return nodeInfo.getLegalIdentities().get(0).getName().equals(me);
+    }
+
+    private boolean isNetworkMap(NodeInfo nodeInfo){
+        return nodeInfo.getLegalIdentities().get(0).getName().getOrganisation().equals("Network Map Service");
+    }
+
+    private void apply(NetworkMapCache.MapChange change) {
+        if (change instanceof NetworkMapCache.MapChange.Modified) {
+            remove(((NetworkMapCache.MapChange.Modified) change).getPreviousNode());
+            add(change.getNode());
+        } else if (change instanceof NetworkMapCache.MapChange.Removed) {
+            remove(change.getNode());
+        } else {
+            add(change.getNode());
+        }
+        publish();
+    }
+
+    private void add(NodeInfo nodeInfo) {
+        if (!isNotary(nodeInfo) && !isMe(nodeInfo) && !isNetworkMap(nodeInfo)) {
+            peers.put(nodeInfo.getLegalIdentities().get(0).getName(), nodeInfo);
+        }
+    }
+
+    private void remove(NodeInfo nodeInfo) {
+        peers.remove(nodeInfo.getLegalIdentities().get(0).getName());
+    }
+
+    // Membership changes are rare, so the list is rebuilt on each change and reads just return it.
+    private synchronized void publish() {
+        peerNames = peers.keySet().stream().map(CordaX500Name::toString).collect(ImmutableList.toImmutableList());
+    }
+}
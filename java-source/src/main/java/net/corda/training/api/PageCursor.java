@@ -0,0 +1,83 @@
+package net.corda.training.api;
+
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.BinaryComparisonOperator;
+import net.corda.core.node.services.vault.ColumnPredicate;
+import net.corda.core.node.services.vault.QueryCriteria;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * An opaque continuation token for the paginated vault endpoints in {@link IOUApi}.
+ *
+ * A cursor pins the page size and the node's time when the first page was served. Every page is read from the vault
+ * as it stood at that instant: states recorded later are left out, and states consumed later are kept in. The set
+ * being paged over therefore can't change mid-traversal, so offset paging over it in state ref order never skips or
+ * repeats a state. A state consumed after the snapshot is returned with its consumed status.
+ */
+class PageCursor {
+    static final int MAX_PAGE_SIZE = 1000;
+    private static final String VERSION = "v1";
+
+    final int pageNumber;
+    final int pageSize;
+    final Instant snapshot;
+
+    private PageCursor(int pageNumber, int pageSize, Instant snapshot) {
+        this.pageNumber = pageNumber;
+        this.pageSize = pageSize;
+        this.snapshot = snapshot;
+    }
+
+    /** The first page of a traversal of the vault as it stands at [nodeTime], which must come from the node's clock. */
+    static PageCursor first(int pageSize, Instant nodeTime) {
+        // Truncated to millis so that the first page uses exactly the instant encoded in the token.
+        return new PageCursor(1, pageSize, Instant.ofEpochMilli(nodeTime.toEpochMilli()));
+    }
+
+    PageCursor next() {
+        return new PageCursor(pageNumber + 1, pageSize, snapshot);
+    }
+
+    /** The states of the snapshot this cursor pages through. */
+    QueryCriteria criteria() {
+        return asOf(snapshot);
+    }
+
+    /**
+     * The states that were unconsumed at [snapshot]: recorded no later than it, and either still unconsumed or
+     * consumed after it. Recorded and consumed times are taken from the node's clock, so [snapshot] must be too.
+     */
+    static QueryCriteria asOf(Instant snapshot) {
+        QueryCriteria recordedBySnapshot = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, null, null, null,
+                null, new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.RECORDED,
+                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.LESS_THAN_OR_EQUAL, snapshot)));
+        QueryCriteria consumedAfterSnapshot = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.CONSUMED, null, null,
+                null, null, new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.CONSUMED,
+                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.GREATER_THAN, snapshot)));
+        return recordedBySnapshot.and(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED).or(consumedAfterSnapshot));
+    }
+
+    String encode() {
+        String token = String.join(":", VERSION, Integer.toString(pageNumber), Integer.toString(pageSize),
+                Long.toString(snapshot.toEpochMilli()));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static PageCursor decode(String cursor) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 4 || !parts[0].equals(VERSION)) throw new IllegalArgumentException();
+            int pageNumber = Integer.parseInt(parts[1]);
+            int pageSize = Integer.parseInt(parts[2]);
+            if (pageNumber < 1 || pageSize < 1 || pageSize > MAX_PAGE_SIZE) throw new IllegalArgumentException();
+            return new PageCursor(pageNumber, pageSize, Instant.ofEpochMilli(Long.parseLong(parts[3])));
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException is an IllegalArgumentException too.
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.corda.training.api;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.training.service.CashBalances;
+import net.corda.training.service.Exposures;
+import net.corda.training.state.IOUState;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Fans the node's IOU and cash vault updates out to every connected browser as server-sent events.
+ *
+ * It holds a single RPC vault feed per state type, however many browsers are listening, and each event carries only
+ * the states that changed:
+ * - "iou" events hold the produced IOU [StateAndRef]s and the consumed [StateRef]s.
+ * - "cash" events hold the net change of the cash balance per currency, in the currency's smallest unit, with the
+ *   version of the {@link CashBalances} that includes it and the fraction digits for formatting it.
+ *
+ * The cash feed also keeps the web tier's {@link CashBalances} current, and the IOU feed its {@link Exposures}.
+ */
+class VaultUpdateBroadcaster {
+    private static final Logger logger = LoggerFactory.getLogger(VaultUpdateBroadcaster.class);
+
+    private final ObjectMapper mapper;
+    private final CashBalances cashBalances;
+    private final Exposures exposures;
+    private final Set<ChunkedOutput<String>> clients = ConcurrentHashMap.newKeySet();
+
+    VaultUpdateBroadcaster(CordaRPCOps rpcOps, ObjectMapper mapper, CashBalances cashBalances, Exposures exposures) {
+        this.mapper = mapper;
+        this.cashBalances = cashBalances;
+        this.exposures = exposures;
+        // The IOU feed maintains the web tier's exposures, seeded from the aggregate snapshot taken with it.
+        DataFeed<Vault.Page<IOUState>, Vault.Update<IOUState>> iouFeed = rpcOps.vaultTrackBy(
+                Exposures.OUTSTANDING_BY_COUNTERPARTY, new PageSpecification(), new Sort(), IOUState.class);
+        exposures.load(iouFeed.getSnapshot());
+        iouFeed.getUpdates().subscribe(this::onIOUUpdate, e -> logger.error("IOU vault feed failed.", e));
+        // The cash feed also maintains the web tier's balances, seeded from the aggregate snapshot taken with it.
+        DataFeed<Vault.Page<Cash.State>, Vault.Update<Cash.State>> cashFeed = rpcOps.vaultTrackBy(
+                CashBalances.SUM_BY_CURRENCY, new PageSpecification(), new Sort(), Cash.State.class);
+        cashBalances.load(cashFeed.getSnapshot());
+        cashFeed.getUpdates().subscribe(this::onCashUpdate, e -> logger.error("Cash vault feed failed.", e));
+    }
+
+    ChunkedOutput<String> subscribe() {
+        ChunkedOutput<String> client = new ChunkedOutput<>(String.class);
+        clients.add(client);
+        return client;
+    }
+
+    private void onIOUUpdate(Vault.Update<IOUState> update) {
+        exposures.apply(update);
+
+        HashMap<String, Object> delta = new HashMap<>();
+        delta.put("produced", update.getProduced());
+        delta.put("consumed", update.getConsumed().stream().map(StateAndRef::getRef).collect(Collectors.toList()));
+        broadcast("iou", delta);
+    }
+
+    private void onCashUpdate(Vault.Update<Cash.State> update) {
+        CashBalances.Quantities changes = cashBalances.apply(update);
+
+        HashMap<String, Object> delta = new HashMap<>();
+        delta.put("version", changes.version);
+        delta.put("balanceChanges", changes.quantities);
+        delta.put("fractionDigits", changes.getFractionDigits());
+        broadcast("cash", delta);
+    }
+
+    private void broadcast(String event, Object delta) {
+        if (clients.isEmpty()) return;
+        final String chunk;
+        try {
+            chunk = "event: " + event + "\ndata: " + mapper.writeValueAsString(delta) + "\n\n";
+        } catch (JsonProcessingException e) {
+            logger.error("Could not serialise {} update.", event, e);
+            return;
+        }
+        for (ChunkedOutput<String> client : clients) {
+            try {
+                if (client.isClosed()) {
+                    clients.remove(client);
+                } else {
+                    client.write(chunk);
+                }
+            } catch (IOException e) {
+                // The browser has gone away.
+                clients.remove(client);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.corda.training.contract;
+
+import net.corda.core.contracts.*;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.training.state.CreditLimitState;
+
+import java.util.List;
+
+import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * The contract code which defines how a [CreditLimitState] behaves. A lender publishes a limit for a borrower and may
+ * later change it; either way only the lender signs.
+ */
+public class CreditLimitContract implements Contract {
+    public static final String CREDIT_LIMIT_CONTRACT_ID = "net.corda.training.contract.CreditLimitContract";
+
+    public interface Commands extends CommandData {
+        class Publish extends TypeOnlyCommandData implements Commands{}
+        class Update extends TypeOnlyCommandData implements Commands{}
+    }
+
+    @Override
+    public void verify(LedgerTransaction tx) {
+        final CommandWithParties<Commands> command = requireSingleCommand(tx.getCommands(), Commands.class);
+        final List<CreditLimitState> inputs = tx.inputsOfType(CreditLimitState.class);
+        final List<CreditLimitState> outputs = tx.outputsOfType(CreditLimitState.class);
+
+        requireThat(require -> {
+            require.using("A credit limit transaction should only create one credit limit.", outputs.size() == 1);
+            CreditLimitState output = outputs.get(0);
+            require.using("A credit limit must be positive.", output.limit.getQuantity() > 0);
+            require.using("The lender and borrower cannot have the same identity.", !output.lender.equals(output.borrower));
+            require.using("Only the lender may sign a credit limit transaction.",
+                    command.getSigners().size() == 1 && command.getSigners().contains(output.lender.getOwningKey()));
+
+            if (command.getValue() instanceof Commands.Publish) {
+                require.using("No credit limit should be consumed when publishing one.", inputs.isEmpty());
+            } else if (command.getValue() instanceof Commands.Update) {
+                require.using("A credit limit update should consume one credit limit.", inputs.size() == 1);
+                CreditLimitState input = inputs.get(0);
+                require.using("Only the limit may change.", input.lender.equals(output.lender)
+                        && input.borrower.equals(output.borrower)
+                        && input.getLinearId().equals(output.getLinearId())
+                        && input.limit.getToken().equals(output.limit.getToken()));
+            } else {
+                throw new IllegalArgumentException("Unrecognised command.");
+            }
+            return null;
+        });
+    }
+}
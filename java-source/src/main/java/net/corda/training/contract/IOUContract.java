@@ -1,27 +1,29 @@
 package net.corda.training.contract;
 
+import com.google.common.io.ByteStreams;
 import net.corda.core.contracts.*;
 
-import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
-import static net.corda.core.contracts.ContractsDSL.requireThat;
-
-import net.corda.core.identity.AbstractParty;
-import net.corda.core.identity.Party;
+import net.corda.core.crypto.CryptoUtils;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
 import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
 
 import net.corda.finance.contracts.asset.Cash;
+import net.corda.training.state.CreditLimitState;
 import net.corda.training.state.IOUState;
+import net.corda.training.state.ReissueLockState;
 
-import javax.swing.plaf.nimbus.State;
-import javax.validation.constraints.NotNull;
-import java.lang.reflect.Array;
+import java.io.IOException;
 import java.security.PublicKey;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
 
 /**
- * This is where you'll add the contract code which defines how the [IOUState] behaves. Looks at the unit tests in
- * [IOUContractTests] for instructions on how to complete the [IOUContract] class.
+ * The contract code which defines how the [IOUState] behaves. An IOU can be issued, transferred to a new lender and
+ * (partially) settled with cash.
  */
 public class IOUContract implements Contract {
     public static final String IOU_CONTRACT_ID = "net.corda.training.contract.IOUContract";
@@ -32,20 +34,516 @@ public class IOUContract implements Contract {
      * function to check for a number of commands which implement this interface.
      */
     public interface Commands extends CommandData {
-        // Add commands here.
-        // E.g
-        // class DoSomething extends TypeOnlyCommandData implements Commands{}
+        class Issue extends TypeOnlyCommandData implements Commands{}
+        class Transfer extends TypeOnlyCommandData implements Commands{}
+        class Settle extends TypeOnlyCommandData implements Commands{}
+        /**
+         * Retires an IOU, recreates it with the same [linearId] in a transaction with no inputs, or unlocks the
+         * recreation, so that its provenance restarts from a single transaction. See the [IOUReissueFlow].
+         *
+         * Every step names the [StateRef] being retired. The recreated IOU is encumbered by a [ReissueLockState]
+         * naming it too, and can only be unlocked by a transaction that attaches the notarised retirement.
+         */
+        class Reissue implements Commands {
+            private final StateRef retired;
+
+            public Reissue(StateRef retired) {
+                this.retired = retired;
+            }
+
+            public StateRef getRetired() {
+                return retired;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Reissue && retired.equals(((Reissue) o).retired);
+            }
+
+            @Override
+            public int hashCode() {
+                return retired.hashCode();
+            }
+
+            @Override
+            public String toString() {
+                return "Reissue(retired=" + retired + ")";
+            }
+        }
+        /**
+         * Pays off IOUs that two parties owe each other against one another, without cash. See the [IOUNetFlow].
+         */
+        class Net extends TypeOnlyCommandData implements Commands{}
     }
 
+    /** The entry of a non-contract attachment that holds the notarised retirement unlocking a re-issued IOU. */
+    public static final String RETIREMENT_ENTRY = "iou-retirement.bin";
+
     /**
      * The contract code for the [IOUContract].
      * The constraints are self documenting so don't require any additional explanation.
+     *
+     * Each IOU in the transaction is checked on its own by grouping the IOU inputs and outputs by [linearId], so a
+     * single transaction may issue, transfer or settle many IOUs. The groups are checked in one pass, which also
+     * collects the required signers and, when settling, the amount each lender must be paid as primitive longs.
+     *
+     * A transaction may carry at most one command of each type. With a single command every IOU is covered by it;
+     * with several, each IOU is covered by the command matching its shape: no input is an issue, a changed lender is a
+     * transfer and anything else is a settlement. Each command must be signed by exactly the parties its IOUs need.
+     *
+     * An issuance may reference the lender's [CreditLimitState] for a borrower, in which case the IOUs it issues
+     * from that lender to that borrower in that currency must not add up to more than the limit.
+     *
+     * A re-issue must be the only IOU command in its transaction, and retires, recreates or unlocks a single IOU. A
+     * retirement must consume the very state its command names. A recreation is held to the same rules as an
+     * issuance, including any credit limit it references, and must still be owed in the IOU's own currency. Like an
+     * issuance it needs both the lender and the borrower to sign. It must also be encumbered by a [ReissueLockState]
+     * naming the retired state, which only an unlock may consume. An unlock replaces the locked IOU with an unchanged,
+     * unencumbered copy, and must attach the retirement, signed by the lender, the borrower and this transaction's
+     * notary. A recreation therefore never becomes spendable unless the state it replaces has been notarised as
+     * retired, and can only be unlocked once, since the notary will not let its lock be consumed twice.
+     *
+     * A net must also be the only IOU command in its transaction. It pays off IOUs between two parties without cash,
+     * so for each pair of parties and currency, the amount paid off what one owes the other must equal the amount
+     * paid off in the other direction.
      */
     @Override
     public void verify(LedgerTransaction tx) {
-        // Add contract code here.
-        // requireThat(req -> {
-        //     ...
-        // });
+        final List<CommandWithParties<Commands>> commands = tx.commandsOfType(Commands.class);
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("Required " + Commands.class.getName() + " command");
+        }
+        final Map<Class<?>, Coverage> coverages = new HashMap<>();
+        for (CommandWithParties<Commands> command : commands) {
+            Commands value = command.getValue();
+            if (!(value instanceof Commands.Issue || value instanceof Commands.Transfer || value instanceof Commands.Settle
+                    || value instanceof Commands.Reissue || value instanceof Commands.Net)) {
+                throw new IllegalArgumentException("Unrecognised command.");
+            }
+            require("There may be only one IOU command of each type.",
+                    coverages.put(value.getClass(), new Coverage(command)) == null);
+        }
+        final boolean singleCommand = coverages.size() == 1;
+        require("A re-issue must be the only IOU command in a transaction.",
+                singleCommand || !coverages.containsKey(Commands.Reissue.class));
+        final List<ReissueLockState> lockInputs = tx.inputsOfType(ReissueLockState.class);
+        final List<ReissueLockState> lockOutputs = tx.outputsOfType(ReissueLockState.class);
+        require("Re-issue locks may only be created or consumed by an IOU re-issue.",
+                lockInputs.isEmpty() && lockOutputs.isEmpty() || singleCommand && coverages.containsKey(Commands.Reissue.class));
+        require("A net must be the only IOU command in a transaction.",
+                singleCommand || !coverages.containsKey(Commands.Net.class));
+        final Coverage onlyCoverage = singleCommand ? coverages.values().iterator().next() : null;
+        final Settlements settlements = new Settlements();
+        final Nettings nettings = new Nettings();
+        final CreditLimits creditLimits = CreditLimits.of(tx.referenceInputsOfType(CreditLimitState.class));
+
+        for (LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier> group : tx.groupStates(IOUState.class, IOUState::getLinearId)) {
+            Coverage coverage = singleCommand ? onlyCoverage : coverages.get(coveringCommand(group));
+            require("Each IOU must be covered by a matching IOU command.", coverage != null);
+            coverage.groups++;
+            coverage.iouInputs += group.getInputs().size();
+            coverage.iouOutputs += group.getOutputs().size();
+            Commands value = coverage.command.getValue();
+            if (value instanceof Commands.Issue) {
+                verifyIssue(group, coverage.requiredSigners, creditLimits);
+            } else if (value instanceof Commands.Transfer) {
+                verifyTransfer(group, coverage.requiredSigners);
+            } else if (value instanceof Commands.Reissue) {
+                verifyReissue(group, coverage.requiredSigners, creditLimits);
+            } else if (value instanceof Commands.Net) {
+                verifyNet(group, coverage.requiredSigners, nettings);
+            } else {
+                verifySettle(group, coverage.requiredSigners, settlements);
+            }
+        }
+
+        for (Coverage coverage : coverages.values()) {
+            final Set<PublicKey> signers = new HashSet<>(coverage.command.getSigners());
+            final Commands value = coverage.command.getValue();
+            if (value instanceof Commands.Issue) {
+                if (singleCommand) {
+                    require("No inputs should be consumed when issuing an IOU.", tx.getInputs().isEmpty());
+                }
+                require("At least one output state should be created when issuing an IOU.", coverage.iouOutputs > 0);
+                if (singleCommand) {
+                    require("Only IOU states may be created when issuing an IOU.", coverage.iouOutputs == tx.getOutputs().size());
+                }
+                require("Both lender and borrower together only may sign IOU issue transaction.", signers.equals(coverage.requiredSigners));
+                if (creditLimits != null) creditLimits.verify();
+            } else if (value instanceof Commands.Transfer) {
+                require("An IOU transfer command must cover at least one IOU.", coverage.groups > 0);
+                if (singleCommand) {
+                    require("An IOU transfer transaction should only consume IOU states.", coverage.iouInputs == tx.getInputs().size());
+                    require("An IOU transfer transaction should only create IOU states.", coverage.iouOutputs == tx.getOutputs().size());
+                }
+                require("The borrower, old lender and new lender only must sign an IOU transfer transaction", signers.equals(coverage.requiredSigners));
+            } else if (value instanceof Commands.Reissue) {
+                final Commands.Reissue reissue = (Commands.Reissue) value;
+                require("An IOU re-issue must retire, recreate or unlock a single IOU.", coverage.groups == 1);
+                require("An IOU re-issue transaction should only consume and create IOU states and their re-issue lock.",
+                        coverage.iouInputs + lockInputs.size() == tx.getInputs().size()
+                                && coverage.iouOutputs + lockOutputs.size() == tx.getOutputs().size());
+                if (coverage.iouOutputs == 0) {
+                    require("A retirement must consume the IOU its command names.", lockInputs.isEmpty()
+                            && tx.getInputs().get(0).getRef().equals(reissue.getRetired()));
+                    require("A retirement must not create anything.", tx.getOutputs().isEmpty());
+                    require("Both lender and borrower together only must sign IOU re-issue transaction.", signers.equals(coverage.requiredSigners));
+                } else if (coverage.iouInputs == 0) {
+                    if (creditLimits != null) creditLimits.verify();
+                    verifyLocked(tx, reissue);
+                    require("Both lender and borrower together only must sign IOU re-issue transaction.", signers.equals(coverage.requiredSigners));
+                } else {
+                    verifyUnlock(tx, reissue);
+                    require("The lender or the borrower only must sign to unlock a re-issued IOU.",
+                            !signers.isEmpty() && coverage.requiredSigners.containsAll(signers));
+                }
+            } else if (value instanceof Commands.Net) {
+                require("An IOU net command must cover at least one IOU.", coverage.groups > 0);
+                require("An IOU netting transaction should only consume and create IOU states.",
+                        coverage.iouInputs == tx.getInputs().size() && coverage.iouOutputs == tx.getOutputs().size());
+                nettings.verify();
+                require("The lenders and borrowers only must sign an IOU netting transaction.", signers.equals(coverage.requiredSigners));
+            } else {
+                require("There must be one input IOU.", coverage.groups > 0);
+                settlements.verifyCashPaid(tx);
+                require("Both lender and borrower together only must sign IOU settle transaction.", signers.equals(coverage.requiredSigners));
+            }
+        }
+    }
+
+    /** The command type that covers an IOU group when a transaction carries more than one IOU command. */
+    private static Class<? extends Commands> coveringCommand(LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier> group) {
+        if (group.getInputs().isEmpty()) return Commands.Issue.class;
+        if (group.getOutputs().size() == 1 && group.getInputs().size() == 1
+                && !group.getInputs().get(0).lender.equals(group.getOutputs().get(0).lender)) {
+            return Commands.Transfer.class;
+        }
+        return Commands.Settle.class;
+    }
+
+    /** Each IOU is created on its own, from nothing. */
+    private static void verifyIssue(LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier> group, Set<PublicKey> requiredSigners,
+                                    CreditLimits creditLimits) {
+        require("No inputs should be consumed when issuing an IOU.", group.getInputs().isEmpty());
+        require("Only one output state should be created for each IOU issued.", group.getOutputs().size() == 1);
+        IOUState iou = group.getOutputs().get(0);
+        require("A newly issued IOU must have a positive amount.", iou.amount.getQuantity() > 0);
+        require("The lender and borrower cannot have the same identity.", !iou.lender.getOwningKey().equals(iou.borrower.getOwningKey()));
+        if (creditLimits != null) creditLimits.draw(iou);
+        requiredSigners.add(iou.lender.getOwningKey());
+        requiredSigners.add(iou.borrower.getOwningKey());
+    }
+
+    /** Only the lender changes, and the old lender, new lender and borrower all sign. */
+    private static void verifyTransfer(LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier> group, Set<PublicKey> requiredSigners) {
+        require("An IOU transfer transaction should only consume one input state.", group.getInputs().size() == 1);
+        require("An IOU transfer transaction should only create one output state.", group.getOutputs().size() == 1);
+        IOUState input = group.getInputs().get(0);
+        IOUState output = group.getOutputs().get(0);
+        require("Only the lender property may change.", input.amount.equals(output.amount)
+                && input.borrower.equals(output.borrower) && input.paid.equals(output.paid));
+        require("The lender property must change in a transfer.", !input.lender.equals(output.lender));
+        requiredSigners.add(input.lender.getOwningKey());
+        requiredSigners.add(input.borrower.getOwningKey());
+        requiredSigners.add(output.lender.getOwningKey());
+    }
+
+    /**
+     * A re-issue either retires an IOU that is still owed, recreates one with nothing before it, or unlocks a
+     * recreated IOU without changing it. A recreated IOU draws on any referenced credit limit just as an issued one
+     * does.
+     */
+    private static void verifyReissue(LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier> group, Set<PublicKey> requiredSigners,
+                                      CreditLimits creditLimits) {
+        final int inputs = group.getInputs().size();
+        final int outputs = group.getOutputs().size();
+        require("A re-issue either retires, recreates or unlocks each IOU.", inputs + outputs == 1
+                || inputs == 1 && outputs == 1 && group.getInputs().get(0).equals(group.getOutputs().get(0)));
+        IOUState iou = group.getInputs().isEmpty() ? group.getOutputs().get(0) : group.getInputs().get(0);
+        require("A re-issued IOU must still have an amount outstanding.", iou.paid.getQuantity() < iou.amount.getQuantity());
+        require("The lender and borrower cannot have the same identity.", !iou.lender.getOwningKey().equals(iou.borrower.getOwningKey()));
+        if (group.getInputs().isEmpty()) {
+            require("A re-issued IOU must have a positive amount.", iou.amount.getQuantity() > 0);
+            require("A re-issued IOU must be paid in its own currency.", iou.paid.getToken().equals(iou.amount.getToken()));
+            if (creditLimits != null) creditLimits.draw(iou);
+        }
+        requiredSigners.add(iou.lender.getOwningKey());
+        requiredSigners.add(iou.borrower.getOwningKey());
+    }
+
+    /** A recreated IOU is encumbered by a single lock, held by its lender and borrower, naming the retired state. */
+    private static void verifyLocked(LedgerTransaction tx, Commands.Reissue reissue) {
+        require("No inputs should be consumed when recreating an IOU.", tx.getInputs().isEmpty());
+        final List<TransactionState<ContractState>> outputs = tx.getOutputs();
+        int index = 0;
+        while (!(outputs.get(index).getData() instanceof IOUState)) index++;
+        final IOUState iou = (IOUState) outputs.get(index).getData();
+        final Integer encumbrance = outputs.get(index).getEncumbrance();
+        require("A recreated IOU must be locked until the IOU it replaces is retired.", encumbrance != null
+                && outputs.get(encumbrance).getData() instanceof ReissueLockState
+                && tx.outputsOfType(ReissueLockState.class).size() == 1);
+        final ReissueLockState lock = (ReissueLockState) outputs.get(encumbrance).getData();
+        require("A recreated IOU must be locked in place of the IOU its command names.",
+                lock.retired.equals(reissue.getRetired()) && lock.locks(iou));
+    }
+
+    /**
+     * An unlocked IOU consumes the lock it was recreated with, is no longer encumbered, and attaches its retirement:
+     * a transaction consuming the state the lock names under the same command, valid in the eyes of the lender, the
+     * borrower and this transaction's notary.
+     */
+    private static void verifyUnlock(LedgerTransaction tx, Commands.Reissue reissue) {
+        final List<ReissueLockState> locks = tx.inputsOfType(ReissueLockState.class);
+        require("An unlocked IOU must consume the lock naming the IOU it replaces.",
+                locks.size() == 1 && locks.get(0).retired.equals(reissue.getRetired()));
+        StateAndRef<ContractState> lockInput = null;
+        StateAndRef<ContractState> iouInput = null;
+        for (StateAndRef<ContractState> input : tx.getInputs()) {
+            if (input.getState().getData() instanceof ReissueLockState) lockInput = input;
+            else iouInput = input;
+        }
+        final IOUState iou = (IOUState) iouInput.getState().getData();
+        require("An IOU must be unlocked with the lock it was recreated with.", locks.get(0).locks(iou)
+                && lockInput.getRef().getTxhash().equals(iouInput.getRef().getTxhash()));
+        require("An unlocked IOU must not be encumbered.",
+                tx.getOutputs().size() == 1 && tx.getOutputs().get(0).getEncumbrance() == null);
+        require("An IOU may only be unlocked once the IOU it replaces is notarised as retired.",
+                retirementAttached(tx, reissue, iou));
+    }
+
+    /** Whether [tx] attaches the notarised retirement that [reissue] names. */
+    private static boolean retirementAttached(LedgerTransaction tx, Commands.Reissue reissue, IOUState iou) {
+        final List<PublicKey> signers = Arrays.asList(iou.lender.getOwningKey(), iou.borrower.getOwningKey(), tx.getNotary().getOwningKey());
+        for (Attachment attachment : tx.getAttachments()) {
+            if (attachment instanceof ContractAttachment) continue;
+            final SignedTransaction retirement = readRetirement(attachment);
+            if (retirement == null) continue;
+            final Set<PublicKey> valid = new HashSet<>();
+            for (TransactionSignature signature : retirement.getSigs()) {
+                if (signature.isValid(retirement.getId())) valid.add(signature.getBy());
+            }
+            final boolean retires = retirement.getTx().getInputs().contains(reissue.getRetired())
+                    && retirement.getTx().getCommands().stream().anyMatch(command -> reissue.equals(command.getValue()));
+            if (retires && tx.getNotary().equals(retirement.getTx().getNotary())
+                    && signers.stream().allMatch(key -> CryptoUtils.isFulfilledBy(key, valid))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The retirement held in [attachment]'s [RETIREMENT_ENTRY], or null if it has none. */
+    private static SignedTransaction readRetirement(Attachment attachment) {
+        try (JarInputStream jar = attachment.openAsJAR()) {
+            for (JarEntry entry = jar.getNextJarEntry(); entry != null; entry = jar.getNextJarEntry()) {
+                if (!entry.getName().equals(RETIREMENT_ENTRY)) continue;
+                final SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+                return factory.deserialize(new SerializedBytes<SignedTransaction>(ByteStreams.toByteArray(jar)),
+                        SignedTransaction.class, factory.getDefaultContext());
+            }
+            return null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed requirement: An attached retirement must be readable.", e);
+        }
+    }
+
+    /**
+     * A netted IOU is either paid off outright or replaced by a copy with a larger [paid] amount. The amount paid off
+     * is recorded against the borrower and lender, to be matched against the other direction once every group has
+     * been seen.
+     */
+    private static void verifyNet(LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier> group, Set<PublicKey> requiredSigners,
+                                  Nettings nettings) {
+        require("There must be one input IOU for each IOU netted.", group.getInputs().size() == 1);
+        require("There must be no more than one output IOU for each IOU netted.", group.getOutputs().size() <= 1);
+        IOUState input = group.getInputs().get(0);
+        long offset;
+        if (group.getOutputs().isEmpty()) {
+            offset = input.amount.getQuantity() - input.paid.getQuantity();
+        } else {
+            IOUState output = group.getOutputs().get(0);
+            require("Only the paid property may change when netting.", input.amount.equals(output.amount)
+                    && input.lender.equals(output.lender) && input.borrower.equals(output.borrower)
+                    && input.paid.getToken().equals(output.paid.getToken()));
+            require("A netted IOU cannot be paid more than it owes.", output.paid.getQuantity() <= output.amount.getQuantity());
+            offset = output.paid.getQuantity() - input.paid.getQuantity();
+        }
+        require("Each IOU netted must be paid off by a positive amount.", offset > 0);
+        nettings.add(input.borrower.getOwningKey(), input.lender.getOwningKey(), input.amount.getToken(), offset);
+        requiredSigners.add(input.lender.getOwningKey());
+        requiredSigners.add(input.borrower.getOwningKey());
+    }
+
+    /**
+     * A settled IOU is either consumed outright or replaced by a copy with a larger [paid] amount. The increase is
+     * recorded against the lender, to be matched against the cash paid to them once every group has been seen.
+     */
+    private static void verifySettle(LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier> group, Set<PublicKey> requiredSigners,
+                                     Settlements settlements) {
+        require("There must be one input IOU.", group.getInputs().size() == 1);
+        IOUState input = group.getInputs().get(0);
+        long outstanding = input.amount.getQuantity() - input.paid.getQuantity();
+        final long settled;
+        if (group.getOutputs().isEmpty()) {
+            settled = outstanding;
+        } else {
+            require("There must be one output IOU.", group.getOutputs().size() == 1);
+            IOUState output = group.getOutputs().get(0);
+            require("The amount may not change when settling.", input.amount.equals(output.amount));
+            require("The borrower may not change when settling.", input.borrower.equals(output.borrower));
+            require("The lender may not change when settling.", input.lender.equals(output.lender));
+            settled = output.paid.getQuantity() - input.paid.getQuantity();
+            require("The amount settled cannot be more than the amount outstanding.", settled <= outstanding);
+            require("There must be no output IOU as it has been fully settled.", settled < outstanding);
+            require("The paid property must increase when settling.", settled > 0);
+        }
+        settlements.owe(input.lender.getOwningKey(), input.amount.getToken(), settled);
+        requiredSigners.add(input.lender.getOwningKey());
+        requiredSigners.add(input.borrower.getOwningKey());
+    }
+
+    /** Equivalent to [requireThat], without allocating a lambda and builder for every check. */
+    private static void require(String message, boolean expression) {
+        if (!expression) throw new IllegalArgumentException("Failed requirement: " + message);
+    }
+
+    /** An IOU command and the IOU groups it covers. */
+    private static final class Coverage {
+        private final CommandWithParties<Commands> command;
+        private final Set<PublicKey> requiredSigners = new HashSet<>();
+        private int groups;
+        private int iouInputs;
+        private int iouOutputs;
+
+        Coverage(CommandWithParties<Commands> command) {
+            this.command = command;
+        }
+    }
+
+    /**
+     * The credit limits referenced by an issuance, and how much of each the issued IOUs draw. IOUs with no matching
+     * limit are not restricted.
+     */
+    private static final class CreditLimits {
+        private final List<CreditLimitState> limits;
+        private final long[] drawn;
+
+        private CreditLimits(List<CreditLimitState> limits) {
+            this.limits = limits;
+            this.drawn = new long[limits.size()];
+        }
+
+        /** Null when the transaction references no credit limit, so the common case costs nothing. */
+        static CreditLimits of(List<CreditLimitState> limits) {
+            return limits.isEmpty() ? null : new CreditLimits(limits);
+        }
+
+        void draw(IOUState iou) {
+            for (int i = 0; i < limits.size(); i++) {
+                if (limits.get(i).covers(iou)) {
+                    try {
+                        drawn[i] = Math.addExact(drawn[i], iou.amount.getQuantity());
+                    } catch (ArithmeticException e) {
+                        throw new IllegalArgumentException("Failed requirement: The IOUs issued must not exceed the credit limit.", e);
+                    }
+                }
+            }
+        }
+
+        void verify() {
+            for (int i = 0; i < limits.size(); i++) {
+                require("The IOUs issued must not exceed the credit limit.", drawn[i] <= limits.get(i).limit.getQuantity());
+            }
+        }
+    }
+
+    /**
+     * The quantities paid off by netting, per borrower, lender and currency. Each must be matched exactly by the
+     * quantity paid off in the opposite direction, so netting never moves value between the parties.
+     */
+    private static final class Nettings {
+        private final Map<List<Object>, long[]> offsets = new HashMap<>();
+
+        void add(PublicKey borrower, PublicKey lender, Currency currency, long quantity) {
+            long[] total = offsets.computeIfAbsent(Arrays.asList(borrower, lender, currency), key -> new long[1]);
+            try {
+                total[0] = Math.addExact(total[0], quantity);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Failed requirement: Amounts netted must offset each other exactly.", e);
+            }
+        }
+
+        void verify() {
+            for (Map.Entry<List<Object>, long[]> offset : offsets.entrySet()) {
+                List<Object> key = offset.getKey();
+                long[] opposite = offsets.get(Arrays.asList(key.get(1), key.get(0), key.get(2)));
+                require("Amounts netted must offset each other exactly.", opposite != null && opposite[0] == offset.getValue()[0]);
+            }
+        }
+    }
+
+    /**
+     * The quantities that each lender must be paid, and is paid, per currency in a settle transaction. Several IOUs
+     * owed to the same lender may be settled by one combined cash payment.
+     *
+     * Totals are kept as primitive longs and added with {@link Math#addExact}, so a settlement with many cash outputs
+     * allocates nothing per output and cannot silently overflow. [Amount]s are only built for failure messages.
+     */
+    private static final class Settlements {
+        private final Map<PublicKey, Map<Currency, long[]>> owed = new HashMap<>();
+        private final Map<PublicKey, Map<Currency, long[]>> paid = new HashMap<>();
+
+        void owe(PublicKey lender, Currency currency, long quantity) {
+            add(owed.computeIfAbsent(lender, key -> new HashMap<>()).computeIfAbsent(currency, key -> new long[1]), quantity,
+                    "The amount settled with a lender overflows.");
+        }
+
+        void verifyCashPaid(LedgerTransaction tx) {
+            boolean anyCash = false;
+            for (TransactionState<ContractState> output : tx.getOutputs()) {
+                if (!(output.getData() instanceof Cash.State)) continue;
+                anyCash = true;
+                Cash.State cash = (Cash.State) output.getData();
+                PublicKey owner = cash.getOwner().getOwningKey();
+                Map<Currency, long[]> owedToOwner = owed.get(owner);
+                if (owedToOwner == null) continue;
+                Currency currency = cash.getAmount().getToken().getProduct();
+                if (!owedToOwner.containsKey(currency)) {
+                    throw new IllegalArgumentException("Token mismatch: " + owedToOwner.keySet().iterator().next() + " vs " + currency);
+                }
+                add(paid.computeIfAbsent(owner, key -> new HashMap<>()).computeIfAbsent(currency, key -> new long[1]),
+                        cash.getAmount().getQuantity(), "The cash paid to a lender overflows.");
+            }
+            require("There must be output cash.", anyCash);
+
+            for (Map.Entry<PublicKey, Map<Currency, long[]>> lender : owed.entrySet()) {
+                Map<Currency, long[]> paidByCurrency = paid.get(lender.getKey());
+                require("There must be output cash paid to the recipient.", paidByCurrency != null);
+                for (Map.Entry<Currency, long[]> owedQuantity : lender.getValue().entrySet()) {
+                    long[] paidQuantity = paidByCurrency.get(owedQuantity.getKey());
+                    long cashPaid = paidQuantity == null ? 0L : paidQuantity[0];
+                    long settled = owedQuantity.getValue()[0];
+                    if (cashPaid > settled) {
+                        fail("The amount settled cannot be more than the amount outstanding.", owedQuantity.getKey(), cashPaid, settled);
+                    }
+                    if (cashPaid != settled) {
+                        fail("The paid property must increase by the amount of cash paid to the lender.", owedQuantity.getKey(), cashPaid, settled);
+                    }
+                }
+            }
+        }
+
+        private static void add(long[] total, long quantity, String overflowMessage) {
+            try {
+                total[0] = Math.addExact(total[0], quantity);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Failed requirement: " + overflowMessage, e);
+            }
+        }
+
+        private static void fail(String message, Currency currency, long cashPaid, long settled) {
+            throw new IllegalArgumentException("Failed requirement: " + message + " Cash paid: "
+                    + new Amount<>(cashPaid, currency) + ", amount settled: " + new Amount<>(settled, currency) + ".");
+        }
     }
-}
\ No newline at end of file
+}
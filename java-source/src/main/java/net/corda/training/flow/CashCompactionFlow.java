@@ -0,0 +1,283 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the maintenance flow which compacts the back-chains of the node's cash.
+ *
+ * Self-issued cash that has passed through many settlements carries a long provenance, which every later recipient
+ * has to resolve. The flow picks the cash states with the deepest chains, and for each one agrees with its issuer
+ * two transactions: one exiting the current state, and one issuing an identical state with no inputs. The exit is
+ * notarised and recorded by both sides first. Only then does the issuer sign the re-issue, and only of the very
+ * amount and owner that was exited, so at no point can the owner hold both the old cash and a signed re-issue.
+ * If the flow stops in between, the owner has lost the cash until the issuer re-issues it, rather than the issuer
+ * having issued it twice. Cash we issued ourselves is compacted without a counterparty.
+ *
+ * The flow returns a [Report] of the deepest chain among the node's cash before and after.
+ */
+public class CashCompactionFlow {
+
+    @CordaSerializable
+    public static class Report {
+        public final int compacted;
+        public final int deepestBefore;
+        public final int deepestAfter;
+
+        public Report(int compacted, int deepestBefore, int deepestAfter) {
+            this.compacted = compacted;
+            this.deepestBefore = deepestBefore;
+            this.deepestAfter = deepestAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Compacted %d cash states; deepest chain %d before, %d after.", compacted, deepestBefore, deepestAfter);
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<Report> {
+        private static final int PAGE_SIZE = 200;
+
+        private final int maxStates;
+        private final int minDepth;
+
+        /**
+         * @param maxStates the most cash states to compact in one run.
+         * @param minDepth only cash whose chain is at least this many transactions deep is compacted.
+         */
+        public InitiatorFlow(int maxStates, int minDepth) {
+            this.maxStates = maxStates;
+            this.minDepth = minDepth;
+        }
+
+        @Suspendable
+        @Override
+        public Report call() throws FlowException {
+            // 1. Measure the chain behind every cash state we hold, deepest first.
+            ChainDepths depths = new ChainDepths(getServiceHub());
+            List<StateAndRef<Cash.State>> cash = unconsumedCash();
+            cash.sort(Comparator.comparingInt((StateAndRef<Cash.State> state) -> depths.of(state.getRef())).reversed());
+            int deepestBefore = cash.isEmpty() ? 0 : depths.of(cash.get(0).getRef());
+
+            // 2. Exit and re-issue the deepest ones.
+            int compacted = 0;
+            for (StateAndRef<Cash.State> state : cash) {
+                if (compacted == maxStates || depths.of(state.getRef()) < minDepth) break;
+                compact(state);
+                compacted++;
+            }
+
+            // 3. Measure again. Re-issued cash has a chain of one.
+            int deepestAfter = 0;
+            for (StateAndRef<Cash.State> state : unconsumedCash()) {
+                deepestAfter = Math.max(deepestAfter, depths.of(state.getRef()));
+            }
+            Report report = new Report(compacted, deepestBefore, deepestAfter);
+            getLogger().info(report.toString());
+            return report;
+        }
+
+        @Suspendable
+        private void compact(StateAndRef<Cash.State> current) throws FlowException {
+            final Cash.State state = current.getState().getData();
+            final Amount<Issued<Currency>> amount = state.getAmount();
+            final Party issuer = getServiceHub().getIdentityService()
+                    .wellKnownPartyFromAnonymous(amount.getToken().getIssuer().getParty());
+            if (issuer == null) throw new FlowException("Unknown issuer " + amount.getToken().getIssuer().getParty() + ".");
+            final PublicKey ownerKey = state.getOwner().getOwningKey();
+            final Party notary = current.getState().getNotary();
+
+            final Set<PublicKey> keys = new LinkedHashSet<>(Collections.singleton(ownerKey));
+            final List<FlowSession> sessions = new ArrayList<>();
+            if (issuer.equals(getOurIdentity())) {
+                keys.add(issuer.getOwningKey());
+            } else {
+                sessions.add(initiateFlow(issuer));
+            }
+            final List<PublicKey> ourKeys = new ArrayList<>(keys);
+
+            // 1. Exit the current cash, and wait until the exit is notarised and recorded by the issuer.
+            final TransactionBuilder exit = new TransactionBuilder(notary)
+                    .addInputState(current)
+                    .addCommand(new Cash.Commands.Exit(amount), issuer.getOwningKey(), ownerKey);
+            exit.verify(getServiceHub());
+            SignedTransaction exited = getServiceHub().signInitialTransaction(exit, ourKeys);
+            if (!sessions.isEmpty()) exited = subFlow(new CollectSignaturesFlow(exited, sessions, ourKeys));
+            subFlow(new FinalityFlow(exited, sessions));
+
+            // 2. Only once the old cash is gone does the issuer sign its re-issue.
+            final TransactionBuilder reissue = new TransactionBuilder(notary)
+                    .addOutputState(new Cash.State(amount, state.getOwner()), Cash.PROGRAM_ID)
+                    .addCommand(new Cash.Commands.Issue(), issuer.getOwningKey(), ownerKey);
+            reissue.verify(getServiceHub());
+            SignedTransaction reissued = getServiceHub().signInitialTransaction(reissue, ourKeys);
+            if (!sessions.isEmpty()) reissued = subFlow(new CollectSignaturesFlow(reissued, sessions, ourKeys));
+            finaliseReissue(reissued, sessions);
+        }
+
+        /** Records the re-issue with us and the issuer. */
+        @Suspendable
+        protected void finaliseReissue(SignedTransaction reissued, List<FlowSession> sessions) throws FlowException {
+            subFlow(new FinalityFlow(reissued, sessions));
+        }
+
+        private List<StateAndRef<Cash.State>> unconsumedCash() {
+            List<StateAndRef<Cash.State>> cash = new ArrayList<>();
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+            for (int pageNumber = 1; ; pageNumber++) {
+                Vault.Page<Cash.State> page = getServiceHub().getVaultService().queryBy(
+                        Cash.State.class, criteria, new PageSpecification(pageNumber, PAGE_SIZE));
+                cash.addAll(page.getStates());
+                if ((long) pageNumber * PAGE_SIZE >= page.getTotalStatesAvailable()) return cash;
+            }
+        }
+    }
+
+    /**
+     * The length of the longest chain of transactions behind a state, counting the transaction that created it.
+     * This is how far back a recipient has to resolve. Depths are memoised, as chains share most of their history.
+     */
+    static class ChainDepths {
+        private final ServiceHub serviceHub;
+        private final Map<SecureHash, Integer> depths = new HashMap<>();
+
+        ChainDepths(ServiceHub serviceHub) {
+            this.serviceHub = serviceHub;
+        }
+
+        int of(StateRef ref) {
+            return of(ref.getTxhash());
+        }
+
+        /** Walks the chain with an explicit stack, since a recursive walk could overflow on exactly the chains we want. */
+        private int of(SecureHash root) {
+            Deque<SecureHash> pending = new ArrayDeque<>(Collections.singleton(root));
+            while (!pending.isEmpty()) {
+                SecureHash id = pending.peek();
+                if (depths.containsKey(id)) {
+                    pending.pop();
+                    continue;
+                }
+                SignedTransaction stx = serviceHub.getValidatedTransactions().getTransaction(id);
+                List<StateRef> inputs = stx == null ? Collections.emptyList() : stx.getInputs();
+                int deepestInput = 0;
+                boolean ready = true;
+                for (StateRef input : inputs) {
+                    Integer depth = depths.get(input.getTxhash());
+                    if (depth == null) {
+                        pending.push(input.getTxhash());
+                        ready = false;
+                    } else {
+                        deepestInput = Math.max(deepestInput, depth);
+                    }
+                }
+                if (ready) {
+                    depths.put(id, deepestInput + 1);
+                    pending.pop();
+                }
+            }
+            return depths.get(root);
+        }
+    }
+
+    /**
+     * This is the flow with which an issuer signs both halves of the compaction of cash it issued, the exit first.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(CashCompactionFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignExitFlow extends SignTransactionFlow {
+                private Cash.State exited;
+
+                private SignExitFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    final LedgerTransaction ltx;
+                    try {
+                        ltx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (SignatureException e) {
+                        throw new FlowException(e);
+                    }
+                    requireThat(req -> {
+                        req.using("A compaction must exit a single cash state.", ltx.getOutputs().isEmpty()
+                                && ltx.getInputStates().size() == 1
+                                && ltx.getInputStates().get(0) instanceof Cash.State
+                                && ltx.commandsOfType(Cash.Commands.Exit.class).size() == 1);
+                        Cash.State cash = (Cash.State) ltx.getInputStates().get(0);
+                        req.using("We only compact cash we issued.",
+                                cash.getAmount().getToken().getIssuer().getParty().equals(getOurIdentity()));
+                        return null;
+                    });
+                    exited = (Cash.State) ltx.getInputStates().get(0);
+                }
+            }
+
+            class SignReissueFlow extends SignTransactionFlow {
+                private final Cash.State exited;
+
+                private SignReissueFlow(FlowSession flowSession, ProgressTracker progressTracker, Cash.State exited) {
+                    super(flowSession, progressTracker);
+                    this.exited = exited;
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(req -> {
+                        req.using("A re-issue must not consume anything.", stx.getTx().getInputs().isEmpty());
+                        req.using("A re-issue must create a single cash state.", stx.getTx().getOutputStates().size() == 1
+                                && stx.getTx().getOutputStates().get(0) instanceof Cash.State);
+                        Cash.State reissued = (Cash.State) stx.getTx().getOutputStates().get(0);
+                        req.using("The re-issue must match the exit.", reissued.getAmount().equals(exited.getAmount())
+                                && reissued.getOwner().equals(exited.getOwner()));
+                        return null;
+                    });
+                }
+            }
+
+            // The exit must be notarised and recorded before we sign anything that creates cash. Each session re-issues
+            // only what it has just exited, so a re-issue can never be replayed against the same exit.
+            SignExitFlow signExit = new SignExitFlow(flowSession, SignTransactionFlow.Companion.tracker());
+            SignedTransaction exitTx = subFlow(signExit);
+            subFlow(new ReceiveFinalityFlow(flowSession, exitTx.getId()));
+            SignedTransaction reissueTx = subFlow(new SignReissueFlow(flowSession, SignTransactionFlow.Companion.tracker(), signExit.exited));
+            return subFlow(new ReceiveFinalityFlow(flowSession, reissueTx.getId()));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.training.contract.CreditLimitContract;
+import net.corda.training.state.CreditLimitState;
+
+import java.util.Collections;
+import java.util.Currency;
+
+/**
+ * This is the flow with which a lender publishes, or changes, the credit limit it grants a borrower in a currency.
+ * Only the lender signs; the borrower records the limit so that it can reference it when issuing IOUs.
+ * The flow returns the [SignedTransaction] that was committed to the ledger.
+ */
+public class CreditLimitFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+
+        private final Party borrower;
+        private final Amount<Currency> limit;
+
+        public InitiatorFlow(Party borrower, Amount<Currency> limit) {
+            this.borrower = borrower;
+            this.limit = limit;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final Party lender = getOurIdentity();
+            final StateAndRef<CreditLimitState> current = find(getServiceHub(), lender, borrower, limit.getToken());
+
+            final TransactionBuilder builder;
+            if (current == null) {
+                builder = new TransactionBuilder(getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0))
+                        .addOutputState(new CreditLimitState(lender, borrower, limit), CreditLimitContract.CREDIT_LIMIT_CONTRACT_ID)
+                        .addCommand(new CreditLimitContract.Commands.Publish(), lender.getOwningKey());
+            } else {
+                builder = new TransactionBuilder(current.getState().getNotary())
+                        .addInputState(current)
+                        .addOutputState(current.getState().getData().withLimit(limit), CreditLimitContract.CREDIT_LIMIT_CONTRACT_ID)
+                        .addCommand(new CreditLimitContract.Commands.Update(), lender.getOwningKey());
+            }
+            builder.verify(getServiceHub());
+            final SignedTransaction stx = getServiceHub().signInitialTransaction(builder);
+            return subFlow(new FinalityFlow(stx, Collections.singletonList(initiateFlow(borrower))));
+        }
+    }
+
+    /**
+     * The current credit limit from [lender] to [borrower] in [currency], or null if none has been published.
+     * There are only a few limits naming any one borrower, so those are filtered in memory.
+     */
+    public static StateAndRef<CreditLimitState> find(ServiceHub serviceHub, Party lender, Party borrower, Currency currency) {
+        QueryCriteria namingBorrower = new QueryCriteria.LinearStateQueryCriteria(Collections.singletonList(borrower));
+        for (StateAndRef<CreditLimitState> limit : serviceHub.getVaultService().queryBy(CreditLimitState.class, namingBorrower).getStates()) {
+            CreditLimitState state = limit.getState().getData();
+            if (state.lender.equals(lender) && state.borrower.equals(borrower) && state.limit.getToken().equals(currency)) {
+                return limit;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This is the flow with which the borrower records a credit limit. There is nothing for it to sign.
+     */
+    @InitiatedBy(CreditLimitFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(flowSession));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flow which issues many IOUs in a single transaction.
+ * Compared to running the [IOUIssueFlow] once per IOU, the batch is signed, notarised and finalised once, and each
+ * distinct counterparty is asked for its signature once however many of the IOUs it is party to. As with a single
+ * issuance, the lenders' credit limits are referenced and each lender checks the batch against its limits.
+ * The flow returns the [SignedTransaction] that was committed to the ledger.
+ */
+public class IOUBatchIssueFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+
+        private final List<IOUState> states;
+
+        public InitiatorFlow(List<IOUState> states) {
+            this.states = states;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            if (states.isEmpty()) {
+                throw new IllegalArgumentException("At least one IOU must be issued.");
+            }
+
+            // We choose our transaction's notary (the notary prevents double-spends).
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+
+            // Every participant of every IOU signs the single issue command, so collect each distinct party once.
+            final Set<Party> parties = new LinkedHashSet<>();
+            for (IOUState state : states) {
+                if (!state.getParticipants().contains(getOurIdentity())) {
+                    throw new IllegalArgumentException("We must be the lender or borrower of every IOU in the batch.");
+                }
+                for (AbstractParty participant : state.getParticipants()) parties.add((Party) participant);
+            }
+            final List<PublicKey> requiredSigners = new ArrayList<>();
+            for (Party party : parties) requiredSigners.add(party.getOwningKey());
+
+            // We build, verify and sign the transaction.
+            final TransactionBuilder builder = new TransactionBuilder(notary)
+                    .addCommand(new Command<>(new IOUContract.Commands.Issue(), requiredSigners));
+            for (IOUState state : states) builder.addOutputState(state, IOUContract.IOU_CONTRACT_ID);
+            IOUIssueFlow.addCreditLimits(getServiceHub(), builder, states);
+            builder.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+
+            // We collect every counterparty's signature, then finalise.
+            final List<FlowSession> sessions = new ArrayList<>();
+            for (Party party : parties) {
+                if (!party.equals(getOurIdentity())) sessions.add(initiateFlow(party));
+            }
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+    }
+
+    /**
+     * This is the flow which signs batched IOU issuances.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUBatchIssueFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+
+                private SignTxFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(req -> {
+                        List<ContractState> outputs = stx.getTx().getOutputStates();
+                        req.using("This must be an IOU transaction", outputs.stream().allMatch(output -> output instanceof IOUState));
+                        return null;
+                    });
+                    IOUIssueFlow.checkCreditLimits(getServiceHub(), getOurIdentity(), stx);
+                }
+            }
+            SignedTransaction signedTx = subFlow(new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker()));
+            return IOUIssueFlow.receiveIssuance(this, flowSession, signedTx);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.finance.workflows.asset.CashUtils;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.service.IOUIndexService;
+import net.corda.training.state.IOUState;
+
+import java.security.PublicKey;
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flow which issues, transfers and settles IOUs together in one atomic transaction.
+ * Each kind of change is carried by its own IOU command, which the [IOUContract] matches to the IOUs it covers, so the
+ * whole batch is signed by each counterparty once, notarised once and finalised once.
+ * The flow returns the [SignedTransaction] that was committed to the ledger.
+ */
+public class IOUCompositeFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+
+        private final List<IOUState> toIssue;
+        private final Map<UniqueIdentifier, Party> toTransfer;
+        private final Map<UniqueIdentifier, Amount<Currency>> toSettle;
+
+        /**
+         * @param toIssue new IOUs that we are the lender or borrower of.
+         * @param toTransfer the new lender of each IOU we lent and are novating.
+         * @param toSettle the amount we are paying off each IOU we borrowed.
+         */
+        public InitiatorFlow(List<IOUState> toIssue, Map<UniqueIdentifier, Party> toTransfer,
+                             Map<UniqueIdentifier, Amount<Currency>> toSettle) {
+            this.toIssue = toIssue;
+            this.toTransfer = toTransfer;
+            this.toSettle = toSettle;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            if (toIssue.isEmpty() && toTransfer.isEmpty() && toSettle.isEmpty()) {
+                throw new IllegalArgumentException("At least one IOU must be issued, transferred or settled.");
+            }
+            if (!Collections.disjoint(toTransfer.keySet(), toSettle.keySet())) {
+                throw new IllegalArgumentException("An IOU cannot be both transferred and settled in one transaction.");
+            }
+            final IOUIndexService index = getServiceHub().cordaService(IOUIndexService.class);
+            final Set<Party> counterparties = new LinkedHashSet<>();
+            final List<StateAndRef<IOUState>> inputs = new ArrayList<>();
+
+            // 1. Resolve every IOU being transferred or settled, checking we are entitled to change it.
+            final Set<PublicKey> transferSigners = new LinkedHashSet<>();
+            final List<IOUState> transferred = new ArrayList<>();
+            for (Map.Entry<UniqueIdentifier, Party> transfer : toTransfer.entrySet()) {
+                StateAndRef<IOUState> input = index.resolve(transfer.getKey());
+                IOUState iou = input.getState().getData();
+                if (!getOurIdentity().equals(iou.lender)) {
+                    throw new IllegalArgumentException("IOU transfer can only be initiated by the IOU lender.");
+                }
+                inputs.add(input);
+                transferred.add(iou.withNewLender(transfer.getValue()));
+                transferSigners.addAll(Arrays.asList(iou.lender.getOwningKey(), iou.borrower.getOwningKey(),
+                        transfer.getValue().getOwningKey()));
+                counterparties.addAll(Arrays.asList(iou.borrower, transfer.getValue()));
+            }
+
+            final Set<PublicKey> settleSigners = new LinkedHashSet<>();
+            final List<IOUState> partlySettled = new ArrayList<>();
+            final Map<Currency, Map<Party, Long>> payments = new LinkedHashMap<>();
+            for (Map.Entry<UniqueIdentifier, Amount<Currency>> settlement : toSettle.entrySet()) {
+                StateAndRef<IOUState> input = index.resolve(settlement.getKey());
+                IOUState iou = input.getState().getData();
+                Amount<Currency> amount = settlement.getValue();
+                if (!getOurIdentity().equals(iou.borrower)) {
+                    throw new IllegalArgumentException("IOU settlement flow must be initiated by the borrower.");
+                }
+                if (!amount.getToken().equals(iou.amount.getToken())) {
+                    throw new IllegalArgumentException("IOU " + settlement.getKey() + " must be settled in " + iou.amount.getToken() + ".");
+                }
+                if (amount.getQuantity() <= 0) {
+                    throw new IllegalArgumentException("The amount paid off each IOU must be positive.");
+                }
+                Amount<Currency> outstanding = iou.amount.minus(iou.paid);
+                if (outstanding.getQuantity() < amount.getQuantity()) {
+                    throw new IllegalArgumentException("Borrower tried to settle with " + amount + " but only owes " + outstanding + ".");
+                }
+                inputs.add(input);
+                if (amount.getQuantity() < outstanding.getQuantity()) partlySettled.add(iou.pay(amount));
+                payments.computeIfAbsent(amount.getToken(), currency -> new LinkedHashMap<>())
+                        .merge(iou.lender, amount.getQuantity(), Long::sum);
+                settleSigners.addAll(Arrays.asList(iou.lender.getOwningKey(), iou.borrower.getOwningKey()));
+                counterparties.add(iou.lender);
+            }
+
+            final Set<PublicKey> issueSigners = new LinkedHashSet<>();
+            for (IOUState iou : toIssue) {
+                if (!iou.getParticipants().contains(getOurIdentity())) {
+                    throw new IllegalArgumentException("We must be the lender or borrower of every IOU issued.");
+                }
+                for (AbstractParty participant : iou.getParticipants()) {
+                    issueSigners.add(participant.getOwningKey());
+                    counterparties.add((Party) participant);
+                }
+            }
+            counterparties.remove(getOurIdentity());
+
+            // 2. All inputs must share a notary; a pure issuance uses the first notary on the network.
+            final Party notary = inputs.isEmpty()
+                    ? getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0)
+                    : inputs.get(0).getState().getNotary();
+            final TransactionBuilder builder = new TransactionBuilder(notary);
+            for (StateAndRef<IOUState> input : inputs) {
+                if (!input.getState().getNotary().equals(notary)) {
+                    throw new IllegalArgumentException("All IOUs transferred or settled together must share a notary.");
+                }
+                builder.addInputState(input);
+            }
+
+            // 3. Add one command per kind of change, with the outputs it covers.
+            for (IOUState iou : toIssue) builder.addOutputState(iou, IOUContract.IOU_CONTRACT_ID);
+            for (IOUState iou : transferred) builder.addOutputState(iou, IOUContract.IOU_CONTRACT_ID);
+            for (IOUState iou : partlySettled) builder.addOutputState(iou, IOUContract.IOU_CONTRACT_ID);
+            IOUIssueFlow.addCreditLimits(getServiceHub(), builder, toIssue);
+            addCommand(builder, new IOUContract.Commands.Issue(), issueSigners);
+            addCommand(builder, new IOUContract.Commands.Transfer(), transferSigners);
+            addCommand(builder, new IOUContract.Commands.Settle(), settleSigners);
+
+            // 4. Pay each lender once per currency, however many of their IOUs are settled.
+            final List<PublicKey> myKeysToSign = new ArrayList<>();
+            for (Map.Entry<Currency, Map<Party, Long>> payment : payments.entrySet()) {
+                for (Map.Entry<Party, Long> lender : payment.getValue().entrySet()) {
+                    myKeysToSign.addAll(CashUtils.generateSpend(getServiceHub(), builder,
+                            new Amount<>(lender.getValue(), payment.getKey()), getOurIdentityAndCert(), lender.getKey(),
+                            ImmutableSet.of()).getSecond());
+                }
+            }
+            myKeysToSign.add(getOurIdentity().getOwningKey());
+
+            // 5. Verify and sign, collect every counterparty's signature once, then finalise.
+            builder.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder, myKeysToSign);
+            final List<FlowSession> sessions = new ArrayList<>();
+            for (Party party : counterparties) sessions.add(initiateFlow(party));
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions, myKeysToSign));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+
+        private static void addCommand(TransactionBuilder builder, CommandData command, Set<PublicKey> signers) {
+            if (!signers.isEmpty()) builder.addCommand(new Command<>(command, new ArrayList<>(signers)));
+        }
+    }
+
+    /**
+     * This is the flow which signs composite IOU transactions.
+     * We check the initiator's role in each IOU it changes, and as lender of any IOU issued, we hold the issuance to
+     * our credit limits as the [IOUIssueFlow] does.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUCompositeFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+
+                private SignTxFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    requireThat(req -> {
+                        boolean hasIOUCommand = stx.getTx().getCommands().stream()
+                                .anyMatch(command -> command.getValue() instanceof IOUContract.Commands);
+                        req.using("This must be an IOU transaction", hasIOUCommand);
+                        return null;
+                    });
+                    final LedgerTransaction ltx = IOUSettleFlow.toLedgerTransaction(getServiceHub(), stx);
+                    checkRoles(ltx, getOurIdentity(), flowSession.getCounterparty());
+                    IOUIssueFlow.checkCreditLimits(getServiceHub(), getOurIdentity(), stx, issued(ltx));
+                }
+            }
+            SignedTransaction signedTx = subFlow(new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker()));
+            return IOUIssueFlow.receiveIssuance(this, flowSession, signedTx);
+        }
+
+        /**
+         * Checks the initiator only changes IOUs in the roles the single-purpose flows allow: it must be a party to
+         * every IOU it issues, the lender of every IOU it transfers and the borrower of every IOU it settles, and it must
+         * not spend our cash. The [IOUContract] checks the rest, including that each lender is paid what its IOUs are
+         * settled by.
+         */
+        private static void checkRoles(LedgerTransaction ltx, Party us, Party initiator) {
+            final Map<UniqueIdentifier, IOUState> outputs = new HashMap<>();
+            for (IOUState output : ltx.outputsOfType(IOUState.class)) outputs.put(output.getLinearId(), output);
+            requireThat(req -> {
+                for (IOUState input : ltx.inputsOfType(IOUState.class)) {
+                    IOUState output = outputs.get(input.getLinearId());
+                    if (output != null && !output.lender.equals(input.lender)) {
+                        req.using("IOU transfer can only be initiated by the IOU lender.", initiator.equals(input.lender));
+                    } else {
+                        req.using("IOU settlement flow must be initiated by the borrower.", initiator.equals(input.borrower));
+                    }
+                }
+                for (IOUState iou : issued(ltx)) {
+                    req.using("The initiator must be the lender or borrower of every IOU issued.",
+                            iou.getParticipants().contains(initiator));
+                }
+                return null;
+            });
+            IOUSettleFlow.checkSpendsNoCashOf(ltx, us);
+        }
+
+        /** The IOUs created from nothing, rather than transferred or settled from an input. */
+        private static List<IOUState> issued(LedgerTransaction ltx) {
+            final Set<UniqueIdentifier> existing = new HashSet<>();
+            for (IOUState input : ltx.inputsOfType(IOUState.class)) existing.add(input.getLinearId());
+            final List<IOUState> issued = new ArrayList<>();
+            for (IOUState output : ltx.outputsOfType(IOUState.class)) {
+                if (!existing.contains(output.getLinearId())) issued.add(output);
+            }
+            return issued;
+        }
+    }
+}
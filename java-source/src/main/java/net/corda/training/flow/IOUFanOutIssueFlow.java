@@ -0,0 +1,154 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.UntrustworthyData;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+
+import java.security.PublicKey;
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flow with which a borrower issues IOUs to many lenders at once, as in a funding round.
+ *
+ * Each lender gets its own transaction, so lenders see only their own IOUs and one refusal does not hold up the
+ * rest. Unlike running the [IOUIssueFlow] once per lender, every proposal is sent before any signature is awaited,
+ * so all the lenders check and sign at the same time and the signing round takes about as long as the slowest
+ * lender.
+ *
+ * Finality does not overlap in the same way. Corda 4.0 runs a flow's sub-flows one at a time and a flow cannot await
+ * another flow, so each [FinalityFlow] waits for its notarisation before the next one starts, and the finality round
+ * takes the sum of the notarisations. Corda 4.0 also has no sendAll, so the proposals are sent in a loop. A send
+ * does not wait for the counterparty, so the loop costs no round trips.
+ *
+ * The proposals are sent as they are rather than through a [SendTransactionFlow], whose dependency resolution
+ * would hold each session in turn. An issuance has no inputs, and its only reference is the lender's own limit.
+ *
+ * The flow returns the [SignedTransaction]s that were committed to the ledger, one per lender.
+ */
+public class IOUFanOutIssueFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<List<SignedTransaction>> {
+
+        private final List<IOUState> states;
+
+        public InitiatorFlow(List<IOUState> states) {
+            this.states = states;
+        }
+
+        @Suspendable
+        @Override
+        public List<SignedTransaction> call() throws FlowException {
+            if (states.isEmpty()) {
+                throw new IllegalArgumentException("At least one IOU must be issued.");
+            }
+
+            // We choose our transaction's notary (the notary prevents double-spends).
+            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+
+            // 1. Group the IOUs by lender. Each lender signs one transaction, however many of the IOUs it holds.
+            final Map<Party, List<IOUState>> byLender = new LinkedHashMap<>();
+            for (IOUState state : states) {
+                if (!getOurIdentity().equals(state.borrower) || getOurIdentity().equals(state.lender)) {
+                    throw new IllegalArgumentException("We must be the borrower, and not the lender, of every IOU issued.");
+                }
+                byLender.computeIfAbsent(state.lender, lender -> new ArrayList<>()).add(state);
+            }
+
+            // 2. Build, verify and sign a transaction for each lender.
+            final List<SignedTransaction> proposals = new ArrayList<>();
+            for (Map.Entry<Party, List<IOUState>> lender : byLender.entrySet()) {
+                final List<PublicKey> requiredSigners = Arrays.asList(lender.getKey().getOwningKey(), getOurIdentity().getOwningKey());
+                final TransactionBuilder builder = new TransactionBuilder(notary)
+                        .addCommand(new Command<>(new IOUContract.Commands.Issue(), requiredSigners));
+                for (IOUState state : lender.getValue()) builder.addOutputState(state, IOUContract.IOU_CONTRACT_ID);
+                IOUIssueFlow.addCreditLimits(getServiceHub(), builder, lender.getValue());
+                builder.verify(getServiceHub());
+                proposals.add(getServiceHub().signInitialTransaction(builder));
+            }
+
+            // 3. Open every session and send every proposal before waiting for any reply. Sends don't block.
+            final List<FlowSession> sessions = new ArrayList<>();
+            for (Party lender : byLender.keySet()) sessions.add(initiateFlow(lender));
+            for (int i = 0; i < sessions.size(); i++) sessions.get(i).send(proposals.get(i));
+
+            // 4. Wait for all the signatures together, checking each is the lender's signature over its own proposal.
+            final List<UntrustworthyData<TransactionSignature>> replies = receiveAll(TransactionSignature.class, sessions);
+            final List<SignedTransaction> signed = new ArrayList<>();
+            for (int i = 0; i < sessions.size(); i++) {
+                final SignedTransaction proposal = proposals.get(i);
+                final PublicKey lenderKey = sessions.get(i).getCounterparty().getOwningKey();
+                final TransactionSignature signature = replies.get(i).unwrap(sig -> {
+                    requireThat(req -> {
+                        req.using("The lender must sign with its own key.", sig.getBy().equals(lenderKey));
+                        req.using("The lender must sign the transaction it was sent.", sig.isValid(proposal.getId()));
+                        return null;
+                    });
+                    return sig;
+                });
+                signed.add(proposal.withAdditionalSignature(signature));
+            }
+
+            // 5. Finalise each transaction with its lender. Sub-flows run one at a time, so these can't overlap.
+            final List<SignedTransaction> finalised = new ArrayList<>();
+            for (int i = 0; i < sessions.size(); i++) {
+                finalised.add(subFlow(new FinalityFlow(signed.get(i), Collections.singletonList(sessions.get(i)))));
+            }
+            return finalised;
+        }
+    }
+
+    /**
+     * This is the flow with which a lender signs its part of a fanned-out issuance.
+     * It makes the same checks as the [IOUIssueFlow] lender, then returns its signature and awaits finality.
+     */
+    @InitiatedBy(IOUFanOutIssueFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final PublicKey ourKey = getOurIdentity().getOwningKey();
+            final SignedTransaction proposal = flowSession.receive(SignedTransaction.class).unwrap(stx -> {
+                try {
+                    // A proposal that references a credit limit is only notarised once we have signed.
+                    stx.verifySignaturesExcept(ourKey, stx.getTx().getNotary().getOwningKey());
+                    stx.verify(getServiceHub(), false);
+                } catch (Exception e) {
+                    throw new FlowException("Invalid IOU issuance proposal.", e);
+                }
+                requireThat(req -> {
+                    List<IOUState> outputs = stx.getTx().outputsOfType(IOUState.class);
+                    req.using("This must be an IOU transaction", !outputs.isEmpty()
+                            && outputs.size() == stx.getTx().getOutputs().size());
+                    req.using("An issuance must not consume anything.", stx.getTx().getInputs().isEmpty());
+                    req.using("An issuance must carry a single issue command.", stx.getTx().getCommands().size() == 1
+                            && stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Issue);
+                    req.using("We must be the lender of every IOU.",
+                            outputs.stream().allMatch(iou -> iou.lender.equals(getOurIdentity())));
+                    req.using("We must be asked to sign.", stx.getTx().getRequiredSigningKeys().contains(ourKey));
+                    return null;
+                });
+                IOUIssueFlow.checkCreditLimits(getServiceHub(), getOurIdentity(), stx);
+                return stx;
+            });
+            flowSession.send(getServiceHub().createSignature(proposal));
+            return IOUIssueFlow.receiveIssuance(this, flowSession, proposal);
+        }
+    }
+}
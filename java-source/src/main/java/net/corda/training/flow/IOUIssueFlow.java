@@ -2,20 +2,25 @@ package net.corda.training.flow;
 
 import co.paralleluniverse.fibers.Suspendable;
 
-import java.util.Arrays;
-import java.util.List;
+import java.security.PublicKey;
+import java.util.*;
 import java.util.stream.Collectors;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.ReferencedStateAndRef;
+import net.corda.core.contracts.StateAndRef;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 import net.corda.core.utilities.ProgressTracker;
 
 import net.corda.training.contract.IOUContract;
+import net.corda.training.service.ExposureService;
+import net.corda.training.state.CreditLimitState;
 import net.corda.training.state.IOUState;
 import org.intellij.lang.annotations.Flow;
 
@@ -25,6 +30,7 @@ import static net.corda.training.contract.IOUContract.Commands.*;
 
 /**
  * This is the flow which handles issuance of new IOUs on the ledger.
+ * If the lender has published a [CreditLimitState] for the borrower, the issuance carries it as a reference input.
  * Gathering the counterparty's signature is handled by the [CollectSignaturesFlow].
  * Notarisation (if required) and commitment to the ledger is handled by the [FinalityFlow].
  * The flow returns the [SignedTransaction] that was committed to the ledger.
@@ -35,16 +41,100 @@ public class IOUIssueFlow {
     @StartableByRPC
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
 
+        private final IOUState state;
+
         public InitiatorFlow(IOUState state) {
+            this.state = state;
         }
 
-        // This is a mock function to prevent errors. Delete the body of the function before starting development.
+        @Suspendable
+        @Override
         public SignedTransaction call() throws FlowException {
+            // We choose our transaction's notary (the notary prevents double-spends).
             final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-            final TransactionBuilder builder = new TransactionBuilder(notary);
+
+            // The issue command requires the signatures of both participants.
+            final List<PublicKey> requiredSigners = state.getParticipants().stream()
+                    .map(AbstractParty::getOwningKey).collect(Collectors.toList());
+            final Command<IOUContract.Commands.Issue> command = new Command<>(new IOUContract.Commands.Issue(), requiredSigners);
+
+            // We build, verify and sign the transaction.
+            final TransactionBuilder builder = new TransactionBuilder(notary)
+                    .addOutputState(state, IOUContract.IOU_CONTRACT_ID)
+                    .addCommand(command);
+            // The credit limit is referenced rather than consumed, so concurrent issuances don't contend for it.
+            addCreditLimits(getServiceHub(), builder, Collections.singletonList(state));
+            builder.verify(getServiceHub());
             final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
-			final List<FlowSession> sessions = Arrays.asList(initiateFlow(getOurIdentity()));
-			return subFlow(new FinalityFlow(ptx, sessions));
+
+            // We collect the other participant's signature, then finalise.
+            final List<FlowSession> sessions = new ArrayList<>();
+            for (AbstractParty participant : state.getParticipants()) {
+                if (!participant.equals(getOurIdentity())) sessions.add(initiateFlow((Party) participant));
+            }
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+    }
+
+    /**
+     * Adds the lender's current credit limit for each borrower and currency issued as a reference input.
+     */
+    static void addCreditLimits(ServiceHub serviceHub, TransactionBuilder builder, List<IOUState> states) throws FlowException {
+        final Set<StateAndRef<CreditLimitState>> added = new HashSet<>();
+        for (IOUState state : states) {
+            StateAndRef<CreditLimitState> creditLimit = CreditLimitFlow.find(
+                    serviceHub, state.lender, state.borrower, state.amount.getToken());
+            if (creditLimit == null || !added.add(creditLimit)) continue;
+            if (!creditLimit.getState().getNotary().equals(builder.getNotary())) {
+                throw new FlowException("The credit limit must be recorded with the issuing notary.");
+            }
+            builder.addReferenceState(new ReferencedStateAndRef<>(creditLimit));
+        }
+    }
+
+    /**
+     * As lender, we hold each borrower to the whole of our current limit, not just the IOUs in this transaction, and
+     * reserve what the issuance draws until it is recorded. See {@link ExposureService#reserve}.
+     */
+    static void checkCreditLimits(ServiceHub serviceHub, Party lender, SignedTransaction stx) {
+        checkCreditLimits(serviceHub, lender, stx, stx.getTx().outputsOfType(IOUState.class));
+    }
+
+    /** As above, for a transaction that issues only some of its IOU outputs. */
+    static void checkCreditLimits(ServiceHub serviceHub, Party lender, SignedTransaction stx, List<IOUState> issued) {
+        final Map<StateAndRef<CreditLimitState>, Long> drawn = new LinkedHashMap<>();
+        for (IOUState iou : issued) {
+            if (!iou.lender.equals(lender)) continue;
+            StateAndRef<CreditLimitState> creditLimit = CreditLimitFlow.find(
+                    serviceHub, iou.lender, iou.borrower, iou.amount.getToken());
+            if (creditLimit != null) drawn.merge(creditLimit, iou.amount.getQuantity(), Math::addExact);
+        }
+        if (drawn.isEmpty()) return;
+        final Map<CreditLimitState, Long> limits = new LinkedHashMap<>();
+        requireThat(req -> {
+            for (Map.Entry<StateAndRef<CreditLimitState>, Long> limit : drawn.entrySet()) {
+                req.using("The issuance must reference our current credit limit.",
+                        stx.getTx().getReferences().contains(limit.getKey().getRef()));
+                limits.put(limit.getKey().getState().getData(), limit.getValue());
+            }
+            req.using("The IOU would take the borrower over its credit limit.",
+                    serviceHub.cordaService(ExposureService.class).reserve(stx.getId(), limits));
+            return null;
+        });
+    }
+
+    /**
+     * Receives an issuance we signed, releasing any reservation against our credit limits if it is never recorded.
+     * Once it is recorded, the {@link ExposureService} releases the reservation as it takes the IOUs in.
+     */
+    @Suspendable
+    static SignedTransaction receiveIssuance(FlowLogic<?> flow, FlowSession session, SignedTransaction signedTx) throws FlowException {
+        try {
+            return flow.subFlow(new ReceiveFinalityFlow(session, signedTx.getId()));
+        } catch (FlowException | RuntimeException e) {
+            flow.getServiceHub().cordaService(ExposureService.class).release(signedTx.getId());
+            throw e;
         }
     }
 
@@ -76,11 +166,14 @@ public class IOUIssueFlow {
 					requireThat(req -> {
 						ContractState output = stx.getTx().getOutputs().get(0).getData();
 						req.using("This must be an IOU transaction", output instanceof IOUState);
+						IOUState iou = (IOUState) output;
+						if (iou.lender.equals(getOurIdentity())) checkCreditLimits(getServiceHub(), getOurIdentity(), stx);
 						return null;
 					});
 				}
 			}
-			return subFlow(new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker()));
+			SignedTransaction signedTx = subFlow(new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker()));
+			return receiveIssuance(this, flowSession, signedTx);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.schema.IOUSchemaV1;
+import net.corda.training.state.IOUState;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flow which nets the IOUs we owe a counterparty against the IOUs it owes us.
+ *
+ * For each currency in which both sides owe each other, the smaller of the two totals is paid off in both directions
+ * in one transaction under a single net command, without any cash. IOUs are paid off smallest first, so as many as
+ * possible are consumed outright; at most one IOU in each direction and currency is left partly paid. Whatever is
+ * still owed afterwards is the net position, which can be settled with cash through the [IOUSettleManyFlow].
+ * The flow returns the [SignedTransaction] that was committed to the ledger.
+ */
+public class IOUNetFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+        private static final int PAGE_SIZE = 1000;
+
+        private final Party counterparty;
+
+        public InitiatorFlow(Party counterparty) {
+            this.counterparty = counterparty;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            if (counterparty.equals(getOurIdentity())) {
+                throw new IllegalArgumentException("IOUs can only be netted with another party.");
+            }
+
+            // 1. Find the open IOUs between us, per currency, in each direction.
+            final Map<Currency, List<StateAndRef<IOUState>>> weOwe = new LinkedHashMap<>();
+            final Map<Currency, List<StateAndRef<IOUState>>> theyOwe = new LinkedHashMap<>();
+            for (StateAndRef<IOUState> state : openIOUs()) {
+                IOUState iou = state.getState().getData();
+                Map<Currency, List<StateAndRef<IOUState>>> direction = iou.borrower.equals(getOurIdentity()) ? weOwe : theyOwe;
+                direction.computeIfAbsent(iou.amount.getToken(), currency -> new ArrayList<>()).add(state);
+            }
+
+            // 2. Pay off the smaller total in both directions, in every currency both sides owe.
+            final List<StateAndRef<IOUState>> inputs = new ArrayList<>();
+            final List<IOUState> partlyPaid = new ArrayList<>();
+            for (Map.Entry<Currency, List<StateAndRef<IOUState>>> currency : weOwe.entrySet()) {
+                List<StateAndRef<IOUState>> owedToUs = theyOwe.get(currency.getKey());
+                if (owedToUs == null) continue;
+                long offset = Math.min(outstanding(currency.getValue()), outstanding(owedToUs));
+                payOff(currency.getValue(), offset, inputs, partlyPaid);
+                payOff(owedToUs, offset, inputs, partlyPaid);
+            }
+            if (inputs.isEmpty()) {
+                throw new FlowException("There are no IOUs to net with " + counterparty + ".");
+            }
+
+            // 3. Add the IOUs and one net command signed by both of us.
+            final Party notary = inputs.get(0).getState().getNotary();
+            final TransactionBuilder builder = new TransactionBuilder(notary);
+            for (StateAndRef<IOUState> input : inputs) {
+                if (!input.getState().getNotary().equals(notary)) {
+                    throw new FlowException("All IOUs netted together must share a notary.");
+                }
+                builder.addInputState(input);
+            }
+            for (IOUState iou : partlyPaid) builder.addOutputState(iou, IOUContract.IOU_CONTRACT_ID);
+            builder.addCommand(new IOUContract.Commands.Net(),
+                    Arrays.asList(getOurIdentity().getOwningKey(), counterparty.getOwningKey()));
+
+            // 4. Verify and sign, collect the counterparty's signature, then finalise.
+            builder.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+            final List<FlowSession> sessions = Collections.singletonList(initiateFlow(counterparty));
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+
+        /** The unconsumed IOUs between us and the counterparty, in either direction. */
+        private List<StateAndRef<IOUState>> openIOUs() {
+            final String us = getOurIdentity().getName().toString();
+            final String them = counterparty.getName().toString();
+            final QueryCriteria criteria;
+            try {
+                Field lender = IOUSchemaV1.PersistentIOU.class.getDeclaredField("lender");
+                Field borrower = IOUSchemaV1.PersistentIOU.class.getDeclaredField("borrower");
+                criteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(lender, us))
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(borrower, them)))
+                        .or(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(lender, them))
+                                .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(borrower, us))));
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException(e);
+            }
+            final List<StateAndRef<IOUState>> open = new ArrayList<>();
+            for (int pageNumber = 1; ; pageNumber++) {
+                Vault.Page<IOUState> page = getServiceHub().getVaultService().queryBy(
+                        IOUState.class, criteria, new PageSpecification(pageNumber, PAGE_SIZE));
+                open.addAll(page.getStates());
+                if ((long) pageNumber * PAGE_SIZE >= page.getTotalStatesAvailable()) return open;
+            }
+        }
+
+        /** Pays off [offset] across the IOUs, smallest first, so that at most the last one is left partly paid. */
+        private static void payOff(List<StateAndRef<IOUState>> states, long offset,
+                                   List<StateAndRef<IOUState>> inputs, List<IOUState> partlyPaid) {
+            final List<StateAndRef<IOUState>> smallestFirst = new ArrayList<>(states);
+            smallestFirst.sort(Comparator.comparingLong((StateAndRef<IOUState> state) -> outstanding(state)));
+            long remaining = offset;
+            for (StateAndRef<IOUState> state : smallestFirst) {
+                if (remaining == 0) return;
+                IOUState iou = state.getState().getData();
+                long outstanding = outstanding(state);
+                long paid = Math.min(outstanding, remaining);
+                inputs.add(state);
+                if (paid < outstanding) partlyPaid.add(iou.pay(new Amount<>(paid, iou.amount.getToken())));
+                remaining -= paid;
+            }
+        }
+
+        private static long outstanding(List<StateAndRef<IOUState>> states) {
+            long total = 0;
+            for (StateAndRef<IOUState> state : states) total = Math.addExact(total, outstanding(state));
+            return total;
+        }
+
+        private static long outstanding(StateAndRef<IOUState> state) {
+            IOUState iou = state.getState().getData();
+            return iou.amount.getQuantity() - iou.paid.getQuantity();
+        }
+    }
+
+    /**
+     * This is the flow with which the counterparty signs a netting of the IOUs between us.
+     * The contract ensures the amounts paid off in each direction match, so the counterparty only checks that the
+     * transaction is a netting it is party to.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUNetFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+
+                private SignTxFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(req -> {
+                        req.using("This must be an IOU netting transaction", stx.getTx().getCommands().size() == 1
+                                && stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Net);
+                        req.using("Only IOUs may be netted", stx.getTx().getOutputStates().stream()
+                                .allMatch(output -> output instanceof IOUState));
+                        return null;
+                    });
+                }
+            }
+            SignedTransaction signedTx = subFlow(new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker()));
+            return subFlow(new ReceiveFinalityFlow(flowSession, signedTx.getId()));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.service.IOUIndexService;
+import net.corda.training.state.IOUState;
+
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flow with which a lender novates a book of IOUs to a new lender.
+ *
+ * Compared to running the [IOUTransferFlow] once per IOU, the book is moved in chunks of [chunkSize] IOUs, each in one
+ * transaction under one transfer command. The old lender, the new lender and every borrower in a chunk sign it once,
+ * and it is notarised and finalised once. Each borrower in a chunk sees the other IOUs in it.
+ *
+ * The book is given either as linearIds or as vault criteria matching IOUs we lend. Only the linearIds are held between
+ * chunks, and each chunk is resolved through the {@link IOUIndexService} just before it is transferred, so the flow's
+ * checkpoints stay small however large the book. The progress tracker shows each chunk's steps in turn under the
+ * transferring step, each labelled with the chunk's number and the number of chunks.
+ * The flow returns the ids of the transactions that were committed to the ledger, in order.
+ */
+public class IOUPortfolioTransferFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<List<SecureHash>> {
+        private static final int PAGE_SIZE = 1000;
+
+        private static final ProgressTracker.Step SELECTING = new ProgressTracker.Step("Selecting the IOUs to transfer.");
+        private static final ProgressTracker.Step TRANSFERRING = new ProgressTracker.Step("Transferring the IOUs chunk by chunk.");
+
+        private final ProgressTracker progressTracker = new ProgressTracker(SELECTING, TRANSFERRING);
+
+        private final List<UniqueIdentifier> linearIds;
+        private final QueryCriteria criteria;
+        private final Party newLender;
+        private final int chunkSize;
+
+        public InitiatorFlow(List<UniqueIdentifier> linearIds, Party newLender, int chunkSize) {
+            this(linearIds, null, newLender, chunkSize);
+        }
+
+        public InitiatorFlow(QueryCriteria criteria, Party newLender, int chunkSize) {
+            this(null, criteria, newLender, chunkSize);
+        }
+
+        private InitiatorFlow(List<UniqueIdentifier> linearIds, QueryCriteria criteria, Party newLender, int chunkSize) {
+            if (chunkSize < 1) throw new IllegalArgumentException("Each chunk must hold at least one IOU.");
+            this.linearIds = linearIds;
+            this.criteria = criteria;
+            this.newLender = newLender;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public List<SecureHash> call() throws FlowException {
+            if (newLender.equals(getOurIdentity())) {
+                throw new IllegalArgumentException("The new lender must be another party.");
+            }
+            progressTracker.setCurrentStep(SELECTING);
+            final List<UniqueIdentifier> book = linearIds != null ? new ArrayList<>(new LinkedHashSet<>(linearIds)) : select();
+
+            final List<SecureHash> transferred = new ArrayList<>();
+            final int chunks = (book.size() + chunkSize - 1) / chunkSize;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                final ChunkProgress progress = new ChunkProgress(chunk + 1, chunks);
+                progressTracker.setChildProgressTracker(TRANSFERRING, progress.tracker);
+                progressTracker.setCurrentStep(TRANSFERRING);
+                getLogger().info("Transferring chunk {} of {} to {}.", chunk + 1, chunks, newLender);
+                final List<UniqueIdentifier> ids = new ArrayList<>(
+                        book.subList(chunk * chunkSize, Math.min(book.size(), (chunk + 1) * chunkSize)));
+                // All inputs of a transaction must share a notary, so a chunk spanning notaries is split between them.
+                for (List<StateAndRef<IOUState>> inputs : new ArrayList<>(resolveByNotary(ids).values())) {
+                    transferred.add(transfer(inputs, progress).getId());
+                }
+            }
+            return transferred;
+        }
+
+        /** The linearIds of the unconsumed IOUs matching our criteria. */
+        private List<UniqueIdentifier> select() {
+            final QueryCriteria unconsumed = criteria.and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED));
+            final List<UniqueIdentifier> book = new ArrayList<>();
+            for (int pageNumber = 1; ; pageNumber++) {
+                Vault.Page<IOUState> page = getServiceHub().getVaultService().queryBy(
+                        IOUState.class, unconsumed, new PageSpecification(pageNumber, PAGE_SIZE));
+                for (StateAndRef<IOUState> state : page.getStates()) book.add(state.getState().getData().getLinearId());
+                if ((long) pageNumber * PAGE_SIZE >= page.getTotalStatesAvailable()) return book;
+            }
+        }
+
+        private Map<Party, List<StateAndRef<IOUState>>> resolveByNotary(List<UniqueIdentifier> ids) {
+            final IOUIndexService index = getServiceHub().cordaService(IOUIndexService.class);
+            final Map<Party, List<StateAndRef<IOUState>>> byNotary = new LinkedHashMap<>();
+            for (UniqueIdentifier id : ids) {
+                StateAndRef<IOUState> input = index.resolve(id);
+                if (!getOurIdentity().equals(input.getState().getData().lender)) {
+                    throw new IllegalArgumentException("IOU transfer can only be initiated by the IOU lender.");
+                }
+                byNotary.computeIfAbsent(input.getState().getNotary(), notary -> new ArrayList<>()).add(input);
+            }
+            return byNotary;
+        }
+
+        @Suspendable
+        private SignedTransaction transfer(List<StateAndRef<IOUState>> inputs, ChunkProgress progress) throws FlowException {
+            progress.tracker.setCurrentStep(progress.building);
+            // The old lender, the new lender and each distinct borrower sign the one transfer command.
+            final Set<Party> signers = new LinkedHashSet<>(Arrays.asList(getOurIdentity(), newLender));
+            final TransactionBuilder builder = new TransactionBuilder(inputs.get(0).getState().getNotary());
+            for (StateAndRef<IOUState> input : inputs) {
+                IOUState iou = input.getState().getData();
+                builder.addInputState(input).addOutputState(iou.withNewLender(newLender), IOUContract.IOU_CONTRACT_ID);
+                signers.add(iou.borrower);
+            }
+            final List<PublicKey> requiredSigners = new ArrayList<>();
+            for (Party signer : signers) requiredSigners.add(signer.getOwningKey());
+            builder.addCommand(new Command<>(new IOUContract.Commands.Transfer(), requiredSigners));
+            builder.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+
+            progress.tracker.setCurrentStep(progress.collecting);
+            final List<FlowSession> sessions = new ArrayList<>();
+            for (Party signer : signers) {
+                if (!signer.equals(getOurIdentity())) sessions.add(initiateFlow(signer));
+            }
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions,
+                    progress.tracker.getChildProgressTracker(progress.collecting)));
+
+            progress.tracker.setCurrentStep(progress.finalising);
+            return subFlow(new FinalityFlow(stx, sessions, progress.tracker.getChildProgressTracker(progress.finalising)));
+        }
+
+        /**
+         * The steps of one chunk's transfer, labelled with the chunk's number so that a client following the flow's
+         * progress can tell how far through the book it is. A chunk split between notaries goes through the steps once
+         * per transaction.
+         */
+        private static final class ChunkProgress {
+            private final ProgressTracker.Step building;
+            private final ProgressTracker.Step collecting;
+            private final ProgressTracker.Step finalising;
+            private final ProgressTracker tracker;
+
+            private ChunkProgress(int chunk, int chunks) {
+                final String label = "chunk " + chunk + " of " + chunks;
+                building = new ProgressTracker.Step("Building " + label + ".");
+                collecting = new ProgressTracker.Step("Collecting the signatures for " + label + ".") {
+                    @Override
+                    public ProgressTracker childProgressTracker() {
+                        return CollectSignaturesFlow.Companion.tracker();
+                    }
+                };
+                finalising = new ProgressTracker.Step("Finalising " + label + ".") {
+                    @Override
+                    public ProgressTracker childProgressTracker() {
+                        return FinalityFlow.Companion.tracker();
+                    }
+                };
+                tracker = new ProgressTracker(building, collecting, finalising);
+            }
+        }
+    }
+
+    /**
+     * This is the flow with which the new lender and the borrowers sign each chunk of a portfolio transfer.
+     * Each checks the initiator is the old lender of the whole chunk, and the new lender checks it is named as the
+     * lender of every IOU in it. The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUPortfolioTransferFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+
+                private SignTxFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    requireThat(req -> {
+                        req.using("This must be an IOU transfer", stx.getTx().getCommands().size() == 1
+                                && stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Transfer);
+                        req.using("Only IOUs may be transferred", stx.getTx().getOutputStates().stream()
+                                .allMatch(output -> output instanceof IOUState));
+                        return null;
+                    });
+                    final LedgerTransaction ltx;
+                    try {
+                        ltx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (SignatureException e) {
+                        throw new FlowException(e);
+                    }
+                    checkRoles(ltx, getOurIdentity(), flowSession.getCounterparty());
+                }
+            }
+            SignedTransaction signedTx = subFlow(new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker()));
+            return subFlow(new ReceiveFinalityFlow(flowSession, signedTx.getId()));
+        }
+
+        /**
+         * Checks the initiator is the lender of every IOU in the chunk, and that every IOU goes to one new lender. A
+         * borrower may sign for a chunk holding other borrowers' IOUs, but a new lender only signs for a chunk in which
+         * every IOU is transferred to it.
+         */
+        private static void checkRoles(LedgerTransaction ltx, Party us, Party initiator) {
+            final List<IOUState> outputs = ltx.outputsOfType(IOUState.class);
+            requireThat(req -> {
+                req.using("IOU transfer can only be initiated by the IOU lender.", ltx.inputsOfType(IOUState.class)
+                        .stream().allMatch(input -> initiator.equals(input.lender)));
+                req.using("Every IOU must be transferred to the same new lender.", outputs.stream()
+                        .map(IOUState::getLender).distinct().count() == 1);
+                boolean isBorrower = outputs.stream().anyMatch(output -> us.equals(output.borrower));
+                req.using("Every IOU must be transferred to us as its new lender.",
+                        isBorrower || us.equals(outputs.get(0).lender));
+                return null;
+            });
+        }
+    }
+}
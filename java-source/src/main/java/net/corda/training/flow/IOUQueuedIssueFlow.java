@@ -0,0 +1,53 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.training.service.IOUIssueQueueService;
+import net.corda.training.state.IOUState;
+
+import java.util.UUID;
+
+/**
+ * This is the flow with which RPC clients issue an IOU through the node's [IOUIssueQueueService].
+ * The IOU is issued together with the other requests queued for the same borrower and lender, so many small
+ * issuances share one round of signing, notarisation and finality.
+ * The flow sleeps until its batch is committed, and returns the {@link StateRef} of its IOU. It fails straight away
+ * if the queue is full.
+ *
+ * Every sleep writes a checkpoint, so the flow first sleeps for the batching window and then backs off, doubling the
+ * wait up to [MAX_BACKOFF] windows. A batch that takes n windows to commit costs about log2(MAX_BACKOFF) checkpoints
+ * to reach the cap and one per MAX_BACKOFF windows after that: O(n / MAX_BACKOFF) for a slow batch, not n.
+ *
+ * The queue keeps its outcomes in memory only, so a flow restored after the node restarts fails with an unknown
+ * ticket, whether or not its IOU was issued.
+ */
+public class IOUQueuedIssueFlow {
+
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<StateRef> {
+        private static final int MAX_BACKOFF = 16;
+
+        private final IOUState state;
+
+        public InitiatorFlow(IOUState state) {
+            this.state = state;
+        }
+
+        @Suspendable
+        @Override
+        public StateRef call() throws FlowException {
+            final IOUIssueQueueService queue = getServiceHub().cordaService(IOUIssueQueueService.class);
+            final UUID ticket = queue.submit(state);
+            int windows = 1;
+            while (true) {
+                sleep(queue.getMaxDelay().multipliedBy(windows));
+                final StateRef issued = queue.poll(ticket);
+                if (issued != null) return issued;
+                windows = Math.min(windows * 2, MAX_BACKOFF);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.service.IOUIndexService;
+import net.corda.training.state.IOUState;
+import net.corda.training.state.ReissueLockState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flow which compacts an IOU's back-chain. Every settlement and transfer adds a transaction that each
+ * later lender has to resolve, so an IOU that has been traded and paid down many times becomes slow to transfer.
+ *
+ * The lender and borrower sign two transactions under the [IOUContract.Commands.Reissue] command, both naming the
+ * current state: one retiring it, and one recreating the IOU, unchanged and with the same [linearId], with no inputs.
+ * The recreated IOU is encumbered by a [ReissueLockState], so it cannot be spent until a third transaction unlocks it,
+ * and the contract only allows that with the notarised retirement attached. The unlocked IOU's provenance is then the
+ * recreation alone: the retirement is an attachment, not an input, so its own history is never resolved.
+ *
+ * A signed recreation is therefore worthless until the state it replaces is retired, and the debt is never doubled.
+ * Once both transactions are signed, the initiator notarises the retirement, records the recreation and unlocks it.
+ * Either party can unlock the recreation on its own with the notarised retirement, so if the initiator stops after
+ * collecting the signatures, the counterparty notarises the retirement and unlocks the IOU itself, and the debt is
+ * never lost either. The flow returns the [SignedTransaction] that unlocks the recreated IOU.
+ */
+public class IOUReissueFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+
+        private final UniqueIdentifier linearId;
+
+        public InitiatorFlow(UniqueIdentifier linearId) {
+            this.linearId = linearId;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            // 1. Retrieve the IOU State from the index, falling back to the vault.
+            final StateAndRef<IOUState> current = getServiceHub().cordaService(IOUIndexService.class).resolve(linearId);
+            final IOUState iou = current.getState().getData();
+            if (!iou.getParticipants().contains(getOurIdentity())) {
+                throw new IllegalArgumentException("IOU re-issue must be initiated by the lender or borrower.");
+            }
+            final Party counterparty = getOurIdentity().equals(iou.lender) ? iou.borrower : iou.lender;
+            final List<PublicKey> requiredSigners = Arrays.asList(iou.lender.getOwningKey(), iou.borrower.getOwningKey());
+            final Party notary = current.getState().getNotary();
+
+            // 2. Build the transaction retiring the current state, and the one recreating the IOU with nothing before it,
+            // locked until the retirement is notarised. The recreation references no credit limit: the debt is not
+            // new, and a limit changed before it is recorded must not strand the IOU half re-issued.
+            final IOUContract.Commands.Reissue command = new IOUContract.Commands.Reissue(current.getRef());
+            final TransactionBuilder retire = new TransactionBuilder(notary)
+                    .addInputState(current)
+                    .addCommand(new Command<>(command, requiredSigners));
+            final TransactionBuilder recreate = new TransactionBuilder(notary)
+                    .addOutputState(iou, IOUContract.IOU_CONTRACT_ID, notary, 1)
+                    .addOutputState(new ReissueLockState(current.getRef(), iou.lender, iou.borrower),
+                            IOUContract.IOU_CONTRACT_ID, notary, 0)
+                    .addCommand(new Command<>(command, requiredSigners));
+            retire.verify(getServiceHub());
+            recreate.verify(getServiceHub());
+
+            // 3. Send the counterparty the recreation before it signs the retirement, so it holds both halves before
+            // we hold either, and can unlock the recreation itself if we stop after retiring the IOU.
+            final FlowSession session = initiateFlow(counterparty);
+            final List<FlowSession> sessions = Collections.singletonList(session);
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(recreate);
+            session.send(ptx);
+            final SignedTransaction retired = subFlow(new CollectSignaturesFlow(
+                    getServiceHub().signInitialTransaction(retire), sessions));
+            final SignedTransaction recreated = ptx.withAdditionalSignature(
+                    session.receive(TransactionSignature.class).unwrap(signature -> signature));
+            try {
+                recreated.verifyRequiredSignatures();
+            } catch (SignatureException e) {
+                throw new FlowException("The counterparty did not sign the recreation.", e);
+            }
+
+            // 4. Retire the current state, which the notary checks isn't spent, then unlock the recreated IOU.
+            return finalise(retired, recreated, sessions);
+        }
+
+        /** Finalises the retirement, then the unlocking of the recreation, with us and the counterparty. */
+        @Suspendable
+        protected SignedTransaction finalise(SignedTransaction retired, SignedTransaction recreated,
+                                             List<FlowSession> sessions) throws FlowException {
+            final SignedTransaction notarised = subFlow(new FinalityFlow(retired, sessions));
+            return subFlow(new FinalityFlow(unlock(getServiceHub(), getOurIdentity(), recreated, notarised), sessions));
+        }
+    }
+
+    /**
+     * Records [recreated], and builds and signs the transaction that unlocks the IOU it recreates, attaching the
+     * notarised [retirement] for the contract to check. The counterparty resolves the recreation from us when the
+     * unlock is finalised.
+     */
+    static SignedTransaction unlock(ServiceHub serviceHub, Party us, SignedTransaction recreated,
+                                    SignedTransaction retirement) throws FlowException {
+        if (serviceHub.getValidatedTransactions().getTransaction(recreated.getId()) == null) {
+            serviceHub.recordTransactions(Collections.singletonList(recreated));
+        }
+        final StateAndRef<IOUState> locked = recreated.getTx().outRef(0);
+        final TransactionBuilder unlock = new TransactionBuilder(locked.getState().getNotary())
+                .addInputState(locked)
+                .addInputState(recreated.getTx().outRef(1))
+                .addOutputState(locked.getState().getData(), IOUContract.IOU_CONTRACT_ID)
+                .addAttachment(attach(serviceHub, retirement))
+                .addCommand(new Command<>(reissue(recreated), us.getOwningKey()));
+        unlock.verify(serviceHub);
+        return serviceHub.signInitialTransaction(unlock);
+    }
+
+    /** Imports [retirement] as an attachment holding it in the contract's [IOUContract.RETIREMENT_ENTRY]. */
+    private static SecureHash attach(ServiceHub serviceHub, SignedTransaction retirement) throws FlowException {
+        final SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(bytes)) {
+            final JarEntry entry = new JarEntry(IOUContract.RETIREMENT_ENTRY);
+            // A fixed time, so the same retirement always makes the same attachment.
+            entry.setTime(0);
+            jar.putNextEntry(entry);
+            jar.write(factory.serialize(retirement, factory.getDefaultContext()).getBytes());
+            jar.closeEntry();
+        } catch (IOException e) {
+            throw new FlowException("Could not attach the retirement " + retirement.getId() + ".", e);
+        }
+        final SecureHash id = SecureHash.sha256(bytes.toByteArray());
+        if (serviceHub.getAttachments().hasAttachment(id)) return id;
+        try {
+            return serviceHub.getAttachments().importAttachment(new ByteArrayInputStream(bytes.toByteArray()),
+                    "app", "retirement-" + retirement.getId() + ".jar");
+        } catch (IOException e) {
+            throw new FlowException("Could not attach the retirement " + retirement.getId() + ".", e);
+        }
+    }
+
+    /** The transaction's re-issue command, or null if it has none. */
+    private static IOUContract.Commands.Reissue reissue(SignedTransaction stx) {
+        return stx.getTx().getCommands().stream()
+                .map(command -> command.getValue())
+                .filter(value -> value instanceof IOUContract.Commands.Reissue)
+                .map(value -> (IOUContract.Commands.Reissue) value)
+                .findFirst().orElse(null);
+    }
+
+    /**
+     * This is the flow which signs both halves of an IOU re-issue.
+     * The recreation is received first, then the retirement is signed by the [SignTransactionFlow] only if it retires
+     * exactly the state the recreation names and copies. If the initiator stops before the recreation is unlocked, we
+     * notarise the retirement and unlock the recreation ourselves, so the IOU is never lost. Should the retired state
+     * have been spent in the meantime, the notary refuses the retirement and the recreation stays locked for good.
+     */
+    @InitiatedBy(IOUReissueFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignRetireFlow extends SignTransactionFlow {
+                private final SignedTransaction recreated;
+
+                private SignRetireFlow(FlowSession flowSession, ProgressTracker progressTracker, SignedTransaction recreated) {
+                    super(flowSession, progressTracker);
+                    this.recreated = recreated;
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    final LedgerTransaction ltx;
+                    try {
+                        ltx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (SignatureException e) {
+                        throw new FlowException(e);
+                    }
+                    final IOUContract.Commands.Reissue command = reissue(recreated);
+                    requireThat(req -> {
+                        req.using("This must be an IOU re-issue", command.equals(reissue(stx)));
+                        req.using("Only the IOU being recreated may be retired.", ltx.getInputs().size() == 1
+                                && ltx.getInputs().get(0).getRef().equals(command.getRetired())
+                                && ltx.getInputStates().get(0).equals(recreated.getTx().outputsOfType(IOUState.class).get(0))
+                                && ltx.getOutputs().isEmpty());
+                        return null;
+                    });
+                }
+            }
+
+            // 1. Check the recreation, which only needs our signature to be complete.
+            final SignedTransaction ptx = flowSession.receive(SignedTransaction.class).unwrap(stx -> {
+                try {
+                    stx.verifySignaturesExcept(getOurIdentity().getOwningKey());
+                    stx.verify(getServiceHub(), false);
+                } catch (Exception e) {
+                    throw new FlowException("Invalid IOU recreation.", e);
+                }
+                requireThat(req -> {
+                    req.using("This must be an IOU re-issue", reissue(stx) != null);
+                    req.using("A re-issue must not consume anything.", stx.getTx().getInputs().isEmpty()
+                            && stx.getTx().getReferences().isEmpty());
+                    req.using("A re-issue must recreate a single IOU, locked until it is unlocked.",
+                            stx.getTx().getOutputStates().size() == 2
+                                    && stx.getTx().getOutputStates().get(0) instanceof IOUState
+                                    && stx.getTx().getOutputStates().get(1) instanceof ReissueLockState);
+                    return null;
+                });
+                return stx;
+            });
+
+            // 2. Sign the retirement, then complete the recreation before handing the initiator our signature for it.
+            final SignedTransaction retired = subFlow(new SignRetireFlow(flowSession, SignTransactionFlow.Companion.tracker(), ptx));
+            final TransactionSignature signature = getServiceHub().createSignature(ptx);
+            final SignedTransaction recreated = ptx.withAdditionalSignature(signature);
+
+            // 3. Receive the retirement and the unlocked IOU from the initiator, or complete them ourselves if it stops.
+            try {
+                flowSession.send(signature);
+                subFlow(new ReceiveFinalityFlow(flowSession, retired.getId()));
+                return subFlow(new ReceiveFinalityFlow(flowSession));
+            } catch (UnexpectedFlowEndException e) {
+                getLogger().warn("Initiator stopped before finalising the re-issue of {}; completing it.", reissue(ptx).getRetired());
+                return complete(retired, recreated);
+            }
+        }
+
+        /** Notarises the retirement unless we already hold it notarised, then unlocks the recreation ourselves. */
+        @Suspendable
+        private SignedTransaction complete(SignedTransaction retired, SignedTransaction recreated) throws FlowException {
+            SignedTransaction notarised = getServiceHub().getValidatedTransactions().getTransaction(retired.getId());
+            if (notarised == null) {
+                notarised = retired.withAdditionalSignatures(subFlow(new NotaryFlow.Client(retired)));
+                getServiceHub().recordTransactions(Collections.singletonList(notarised));
+            }
+            final SignedTransaction unlock = unlock(getServiceHub(), getOurIdentity(), recreated, notarised);
+            final SignedTransaction unlocked = unlock.withAdditionalSignatures(subFlow(new NotaryFlow.Client(unlock)));
+            getServiceHub().recordTransactions(Collections.singletonList(unlocked));
+            return unlocked;
+        }
+    }
+}
@@ -7,8 +7,10 @@ import net.corda.core.contracts.*;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
 import net.corda.core.node.services.Vault;
 import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.LedgerTransaction;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.OpaqueBytes;
@@ -16,11 +18,15 @@ import net.corda.core.utilities.ProgressTracker;
 import net.corda.finance.contracts.asset.Cash;
 import net.corda.finance.flows.AbstractCashFlow;
 import net.corda.finance.flows.CashIssueFlow;
+import net.corda.finance.workflows.asset.CashUtils;
 import net.corda.training.contract.IOUContract;
+import net.corda.training.service.CashBalanceService;
+import net.corda.training.service.IOUIndexService;
 import net.corda.training.state.IOUState;
 
 import java.lang.IllegalArgumentException;
 import java.security.PublicKey;
+import java.security.SignatureException;
 import java.util.*;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
@@ -36,6 +42,7 @@ public class IOUSettleFlow {
 
     /**
      * This is the flow which handles the (partial) settlement of existing IOUs on the ledger.
+     * The IOU is resolved through the {@link IOUIndexService}, which only touches the vault when the index misses.
      * Gathering the counterparty's signature is handled by the [CollectSignaturesFlow].
      * Notarisation (if required) and commitment to the ledger is handled vy the [FinalityFlow].
      * The flow returns the [SignedTransaction] that was committed to the ledger.
@@ -44,21 +51,72 @@ public class IOUSettleFlow {
     @StartableByRPC
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
 
-        public InitiatorFlow(IOUState state) {
+        private final UniqueIdentifier linearId;
+        private final Amount<Currency> amount;
+
+        public InitiatorFlow(UniqueIdentifier linearId, Amount<Currency> amount) {
+            this.linearId = linearId;
+            this.amount = amount;
         }
 
-        // This is a mock function to prevent errors. Delete the body of the function before starting development.
+        @Suspendable
+        @Override
         public SignedTransaction call() throws FlowException {
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-            final TransactionBuilder builder = new TransactionBuilder(notary);
-            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
-            final List<FlowSession> sessions = Arrays.asList(initiateFlow(getOurIdentity()));
-            return subFlow(new FinalityFlow(ptx, sessions));
+            // 1. Retrieve the IOU State from the index, falling back to the vault.
+            StateAndRef<IOUState> inputStateAndRef = getServiceHub().cordaService(IOUIndexService.class).resolve(linearId);
+            IOUState inputIOU = inputStateAndRef.getState().getData();
+
+            // 2. This flow can only be initiated by the borrower.
+            if (!getOurIdentity().equals(inputIOU.borrower)) {
+                throw new IllegalArgumentException("IOU settlement flow must be initiated by the borrower.");
+            }
+
+            if (!amount.getToken().equals(inputIOU.amount.getToken())) {
+                throw new IllegalArgumentException("IOU " + linearId + " must be settled in " + inputIOU.amount.getToken() + ".");
+            }
+
+            // 3. Check we have enough cash to settle the requested amount, and don't pay more than is outstanding.
+            Amount<Currency> cashBalance = getServiceHub().cordaService(CashBalanceService.class)
+                    .getBalance(amount.getToken());
+            if (cashBalance.getQuantity() <= 0L) {
+                throw new IllegalArgumentException("Borrower has no " + amount.getToken() + " to settle.");
+            }
+            if (cashBalance.getQuantity() < amount.getQuantity()) {
+                throw new IllegalArgumentException("Borrower has only " + cashBalance + " but needs " + amount + " to settle.");
+            }
+            Amount<Currency> outstanding = inputIOU.amount.minus(inputIOU.paid);
+            if (outstanding.getQuantity() < amount.getQuantity()) {
+                throw new IllegalArgumentException("Borrower tried to settle with " + amount + " but only owes " + outstanding + ".");
+            }
+
+            // 4. Add the IOU input, the settle command and the cash payment to the lender.
+            List<PublicKey> requiredSigners = Arrays.asList(inputIOU.lender.getOwningKey(), inputIOU.borrower.getOwningKey());
+            TransactionBuilder builder = new TransactionBuilder(inputStateAndRef.getState().getNotary())
+                    .addInputState(inputStateAndRef)
+                    .addCommand(new IOUContract.Commands.Settle(), requiredSigners);
+            List<PublicKey> cashKeys = CashUtils.generateSpend(getServiceHub(), builder, amount,
+                    getOurIdentityAndCert(), inputIOU.lender, ImmutableSet.of()).getSecond();
+
+            // 5. Only add an output IOU if there is still something left to pay.
+            if (amount.getQuantity() < outstanding.getQuantity()) {
+                builder.addOutputState(inputIOU.pay(amount), IOUContract.IOU_CONTRACT_ID);
+            }
+
+            // 6. Verify and sign with our legal identity key and any keys owning the spent cash.
+            builder.verify(getServiceHub());
+            List<PublicKey> myKeysToSign = new ArrayList<>(cashKeys);
+            myKeysToSign.add(getOurIdentity().getOwningKey());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(builder, myKeysToSign);
+
+            // 7. Collect the lender's signature, then finalise.
+            List<FlowSession> sessions = Arrays.asList(initiateFlow(inputIOU.lender));
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions, myKeysToSign));
+            return subFlow(new FinalityFlow(stx, sessions));
         }
     }
 
     /**
-     * This is the flow which signs IOU settlements.
+     * This is the flow which signs IOU settlements, once {@link #checkSettlement} has checked that we are paid.
      * The signing is handled by the [SignTransactionFlow].
      * Uncomment the initiatedBy annotation to facilitate the responder flow.
      */
@@ -80,16 +138,70 @@ public class IOUSettleFlow {
                 }
 
                 @Override
-                protected void checkTransaction(SignedTransaction stx) {
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
                     requireThat(require -> {
-                        ContractState output = stx.getTx().outputsOfType(IOUState.class).get(0);
-                        require.using("This must be an IOU transaction", output instanceof IOUState);
+                        // A full settlement has no IOU output, so recognise the transaction by its command.
+                        boolean isSettle = stx.getTx().getCommands().stream()
+                                .anyMatch(command -> command.getValue() instanceof IOUContract.Commands.Settle);
+                        require.using("This must be an IOU transaction", isSettle);
                         return null;
                     });
+                    checkSettlement(toLedgerTransaction(getServiceHub(), stx), getOurIdentity(), otherPartyFlow.getCounterparty());
                 }
             }
 
-            return subFlow(new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker()));
+            SignedTransaction signedTx = subFlow(new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker()));
+            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, signedTx.getId()));
+        }
+    }
+
+    /**
+     * Checks a settlement the [initiator] proposes to us as one of its lenders. The initiator must be the borrower of
+     * every IOU settled, the transaction must not spend any of our cash, and we must be paid what each of our IOUs is
+     * settled by, in the IOU's own currency.
+     */
+    static void checkSettlement(LedgerTransaction ltx, Party us, Party initiator) {
+        checkSpendsNoCashOf(ltx, us);
+        final Map<UniqueIdentifier, IOUState> outputs = new HashMap<>();
+        for (IOUState output : ltx.outputsOfType(IOUState.class)) outputs.put(output.getLinearId(), output);
+        final Map<Currency, Long> settled = new HashMap<>();
+        final Map<Currency, Long> paid = new HashMap<>();
+        requireThat(require -> {
+            for (IOUState input : ltx.inputsOfType(IOUState.class)) {
+                require.using("IOU settlement flow must be initiated by the borrower.", initiator.equals(input.borrower));
+                if (!us.equals(input.lender)) continue;
+                IOUState output = outputs.get(input.getLinearId());
+                long remaining = output == null ? 0L : output.amount.getQuantity() - output.paid.getQuantity();
+                settled.merge(input.amount.getToken(),
+                        input.amount.getQuantity() - input.paid.getQuantity() - remaining, Math::addExact);
+            }
+            for (Cash.State cash : ltx.outputsOfType(Cash.State.class)) {
+                if (!cash.getOwner().getOwningKey().equals(us.getOwningKey())) continue;
+                paid.merge(cash.getAmount().getToken().getProduct(), cash.getAmount().getQuantity(), Math::addExact);
+            }
+            for (Map.Entry<Currency, Long> owed : settled.entrySet()) {
+                require.using("We must be paid what our IOUs are settled by.",
+                        paid.getOrDefault(owed.getKey(), 0L) >= owed.getValue());
+            }
+            return null;
+        });
+    }
+
+    /** Checks a transaction we did not initiate spends none of our cash, which we would otherwise sign away. */
+    static void checkSpendsNoCashOf(LedgerTransaction ltx, Party us) {
+        requireThat(require -> {
+            require.using("We must not pay any cash in a transaction we did not initiate.", ltx.inputsOfType(Cash.State.class)
+                    .stream().noneMatch(cash -> cash.getOwner().getOwningKey().equals(us.getOwningKey())));
+            return null;
+        });
+    }
+
+    /** Resolves a proposed transaction so a responder can check its inputs, without checking its signatures yet. */
+    static LedgerTransaction toLedgerTransaction(ServiceHub serviceHub, SignedTransaction stx) throws FlowException {
+        try {
+            return stx.toLedgerTransaction(serviceHub, false);
+        } catch (SignatureException e) {
+            throw new FlowException(e);
         }
     }
 
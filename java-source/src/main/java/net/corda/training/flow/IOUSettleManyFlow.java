@@ -0,0 +1,174 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.finance.contracts.asset.PartyAndAmount;
+import net.corda.finance.workflows.asset.CashUtils;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.service.CashBalanceService;
+import net.corda.training.service.IOUIndexService;
+import net.corda.training.state.IOUState;
+
+import java.security.PublicKey;
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flow with which a borrower settles many IOUs in one transaction.
+ *
+ * Compared to running the [IOUSettleFlow] once per IOU, cash is selected once per currency for the total being paid,
+ * each lender receives one combined payment per currency, and the transaction is signed by each lender, notarised
+ * and finalised once. The [IOUContract] matches the combined payment against the IOUs settled with each lender.
+ * The flow returns the [SignedTransaction] that was committed to the ledger.
+ */
+public class IOUSettleManyFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+
+        private final Map<UniqueIdentifier, Amount<Currency>> payments;
+
+        /**
+         * @param payments the amount we are paying off each IOU we borrowed.
+         */
+        public InitiatorFlow(Map<UniqueIdentifier, Amount<Currency>> payments) {
+            this.payments = payments;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            if (payments.isEmpty()) {
+                throw new IllegalArgumentException("At least one IOU must be settled.");
+            }
+            final IOUIndexService index = getServiceHub().cordaService(IOUIndexService.class);
+
+            // 1. Resolve every IOU, check we owe at least what we are paying, and total what each lender is owed.
+            final List<StateAndRef<IOUState>> inputs = new ArrayList<>();
+            final List<IOUState> partlySettled = new ArrayList<>();
+            final Map<Currency, Map<Party, Long>> totals = new LinkedHashMap<>();
+            for (Map.Entry<UniqueIdentifier, Amount<Currency>> payment : payments.entrySet()) {
+                StateAndRef<IOUState> input = index.resolve(payment.getKey());
+                IOUState iou = input.getState().getData();
+                Amount<Currency> amount = payment.getValue();
+                if (!getOurIdentity().equals(iou.borrower)) {
+                    throw new IllegalArgumentException("IOU settlement flow must be initiated by the borrower.");
+                }
+                if (!amount.getToken().equals(iou.amount.getToken())) {
+                    throw new IllegalArgumentException("IOU " + payment.getKey() + " must be settled in " + iou.amount.getToken() + ".");
+                }
+                if (amount.getQuantity() <= 0) {
+                    throw new IllegalArgumentException("The amount paid off each IOU must be positive.");
+                }
+                Amount<Currency> outstanding = iou.amount.minus(iou.paid);
+                if (outstanding.getQuantity() < amount.getQuantity()) {
+                    throw new IllegalArgumentException("Borrower tried to settle with " + amount + " but only owes " + outstanding + ".");
+                }
+                inputs.add(input);
+                if (amount.getQuantity() < outstanding.getQuantity()) partlySettled.add(iou.pay(amount));
+                totals.computeIfAbsent(amount.getToken(), currency -> new LinkedHashMap<>())
+                        .merge(iou.lender, amount.getQuantity(), Math::addExact);
+            }
+
+            // 2. Check we have the cash for the total in each currency before selecting any.
+            final CashBalanceService balances = getServiceHub().cordaService(CashBalanceService.class);
+            for (Map.Entry<Currency, Map<Party, Long>> currency : totals.entrySet()) {
+                long total = 0;
+                for (long quantity : currency.getValue().values()) total = Math.addExact(total, quantity);
+                Amount<Currency> needed = new Amount<>(total, currency.getKey());
+                Amount<Currency> cashBalance = balances.getBalance(currency.getKey());
+                if (cashBalance.getQuantity() < total) {
+                    throw new IllegalArgumentException("Borrower has only " + cashBalance + " but needs " + needed + " to settle.");
+                }
+            }
+
+            // 3. Add the IOUs and one settle command signed by us and every lender.
+            final Party notary = inputs.get(0).getState().getNotary();
+            final TransactionBuilder builder = new TransactionBuilder(notary);
+            final Set<Party> lenders = new LinkedHashSet<>();
+            for (StateAndRef<IOUState> input : inputs) {
+                if (!input.getState().getNotary().equals(notary)) {
+                    throw new IllegalArgumentException("All IOUs settled together must share a notary.");
+                }
+                builder.addInputState(input);
+                lenders.add(input.getState().getData().lender);
+            }
+            for (IOUState iou : partlySettled) builder.addOutputState(iou, IOUContract.IOU_CONTRACT_ID);
+            final List<PublicKey> requiredSigners = new ArrayList<>();
+            requiredSigners.add(getOurIdentity().getOwningKey());
+            for (Party lender : lenders) requiredSigners.add(lender.getOwningKey());
+            builder.addCommand(new IOUContract.Commands.Settle(), requiredSigners);
+
+            // 4. Select cash once per currency, paying each lender its total in one output.
+            final Set<PublicKey> myKeysToSign = new LinkedHashSet<>();
+            for (Map.Entry<Currency, Map<Party, Long>> currency : totals.entrySet()) {
+                List<PartyAndAmount<Currency>> lenderPayments = new ArrayList<>();
+                for (Map.Entry<Party, Long> lender : currency.getValue().entrySet()) {
+                    lenderPayments.add(new PartyAndAmount<>(lender.getKey(), new Amount<>(lender.getValue(), currency.getKey())));
+                }
+                myKeysToSign.addAll(CashUtils.generateSpend(getServiceHub(), builder, lenderPayments,
+                        getOurIdentityAndCert(), ImmutableSet.of()).getSecond());
+            }
+            myKeysToSign.add(getOurIdentity().getOwningKey());
+
+            // 5. Verify and sign, collect each lender's signature, then finalise.
+            builder.verify(getServiceHub());
+            final List<PublicKey> ourKeys = new ArrayList<>(myKeysToSign);
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder, ourKeys);
+            final List<FlowSession> sessions = new ArrayList<>();
+            for (Party lender : lenders) sessions.add(initiateFlow(lender));
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions, ourKeys));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+    }
+
+    /**
+     * This is the flow with which each lender signs a settlement of many IOUs.
+     * As in the [IOUSettleFlow], the lender checks the initiator borrowed every IOU settled, that none of its own cash
+     * is spent, and that it is paid what its own IOUs are settled by. The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUSettleManyFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+
+                private SignTxFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    requireThat(req -> {
+                        // A full settlement has no IOU output, so recognise the transaction by its command.
+                        boolean isSettle = stx.getTx().getCommands().stream()
+                                .anyMatch(command -> command.getValue() instanceof IOUContract.Commands.Settle);
+                        req.using("This must be an IOU transaction", isSettle);
+                        return null;
+                    });
+                    IOUSettleFlow.checkSettlement(IOUSettleFlow.toLedgerTransaction(getServiceHub(), stx),
+                            getOurIdentity(), flowSession.getCounterparty());
+                }
+            }
+            SignedTransaction signedTx = subFlow(new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker()));
+            return subFlow(new ReceiveFinalityFlow(flowSession, signedTx.getId()));
+        }
+    }
+}
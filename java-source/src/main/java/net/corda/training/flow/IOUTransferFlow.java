@@ -11,9 +11,11 @@ import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
 import net.corda.core.node.services.Vault;
 import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.LedgerTransaction;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.training.contract.IOUContract;
+import net.corda.training.service.IOUIndexService;
 import net.corda.training.state.IOUState;
 
 import javax.annotation.Signed;
@@ -29,20 +31,55 @@ import static net.corda.core.contracts.ContractsDSL.requireThat;
 
 public class IOUTransferFlow{
 
+    /**
+     * This is the flow which handles transfers of existing IOUs on the ledger.
+     * The IOU is resolved through the {@link IOUIndexService}, which only touches the vault when the index misses.
+     * Gathering the counterparties' signatures is handled by the [CollectSignaturesFlow].
+     * Notarisation (if required) and commitment to the ledger is handled by the [FinalityFlow].
+     * The flow returns the [SignedTransaction] that was committed to the ledger.
+     */
     @InitiatingFlow
     @StartableByRPC
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
 
-        public InitiatorFlow(IOUState state) {
+        private final UniqueIdentifier linearId;
+        private final Party newLender;
+
+        public InitiatorFlow(UniqueIdentifier linearId, Party newLender) {
+            this.linearId = linearId;
+            this.newLender = newLender;
         }
 
-        // This is a mock function to prevent errors. Delete the body of the function before starting development.
+        @Suspendable
+        @Override
         public SignedTransaction call() throws FlowException {
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-            final TransactionBuilder builder = new TransactionBuilder(notary);
-            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
-            final List<FlowSession> sessions = Arrays.asList(initiateFlow(getOurIdentity()));
-            return subFlow(new FinalityFlow(ptx, sessions));
+            // 1. Retrieve the IOU State from the index, falling back to the vault.
+            StateAndRef<IOUState> inputStateAndRef = getServiceHub().cordaService(IOUIndexService.class).resolve(linearId);
+            IOUState inputIOU = inputStateAndRef.getState().getData();
+
+            // 2. This flow can only be initiated by the current lender.
+            if (!getOurIdentity().equals(inputIOU.lender)) {
+                throw new IllegalArgumentException("IOU transfer can only be initiated by the IOU lender.");
+            }
+
+            // 3. Create the new IOU state reflecting the new lender, and the transfer command signed by all parties.
+            IOUState outputIOU = inputIOU.withNewLender(newLender);
+            List<PublicKey> requiredSigners = Arrays.asList(
+                    inputIOU.lender.getOwningKey(), inputIOU.borrower.getOwningKey(), newLender.getOwningKey());
+            Command<IOUContract.Commands.Transfer> command = new Command<>(new IOUContract.Commands.Transfer(), requiredSigners);
+
+            // 4. Build, verify and sign the transaction.
+            TransactionBuilder builder = new TransactionBuilder(inputStateAndRef.getState().getNotary())
+                    .addInputState(inputStateAndRef)
+                    .addOutputState(outputIOU, IOUContract.IOU_CONTRACT_ID)
+                    .addCommand(command);
+            builder.verify(getServiceHub());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+
+            // 5. Collect the borrower's and new lender's signatures, then finalise.
+            List<FlowSession> sessions = Arrays.asList(initiateFlow(inputIOU.borrower), initiateFlow(newLender));
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            return subFlow(new FinalityFlow(stx, sessions));
         }
     }
 
@@ -69,15 +106,23 @@ public class IOUTransferFlow{
                 }
                 @Override
                 @NotNull
-                protected void checkTransaction(SignedTransaction stx) {
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
                     requireThat(require -> {
                         ContractState output = stx.getTx().getOutputs().get(0).getData();
                         require.using("This must be an IOU transaction", output instanceof IOUState);
                         return null;
                     });
+                    LedgerTransaction ltx = IOUSettleFlow.toLedgerTransaction(getServiceHub(), stx);
+                    IOUSettleFlow.checkSpendsNoCashOf(ltx, getOurIdentity());
+                    requireThat(require -> {
+                        require.using("IOU transfer can only be initiated by the IOU lender.", ltx.inputsOfType(IOUState.class)
+                                .stream().allMatch(input -> otherPartyFlow.getCounterparty().equals(input.lender)));
+                        return null;
+                    });
                 }
             }
-            return subFlow(new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker()));
+            SignedTransaction signedTx = subFlow(new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker()));
+            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, signedTx.getId()));
         }
 
     }
@@ -13,6 +13,11 @@ import org.intellij.lang.annotations.Flow;
 import javax.annotation.Signed;
 import java.util.Currency;
 
+/**
+ * Self issues the calling node an amount of cash in the desired currency.
+ * Only used for demo/sample/training purposes!
+ */
+@StartableByRPC
 public class SelfIssueCashFlow extends FlowLogic<Cash.State> {
 
     private Amount<Currency> amount;
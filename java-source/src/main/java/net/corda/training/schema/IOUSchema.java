@@ -0,0 +1,8 @@
+package net.corda.training.schema;
+
+/**
+ * The family of schemas for {@link net.corda.training.state.IOUState}. Each version of the mapping is a
+ * {@link net.corda.core.schemas.MappedSchema} which names this class as its family.
+ */
+public class IOUSchema {
+}
@@ -0,0 +1,93 @@
+package net.corda.training.schema;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.UUID;
+
+/**
+ * First version of the {@link IOUSchema}. Every {@link net.corda.training.state.IOUState} the node records gets a row
+ * in [iou_states], so the vault can filter IOUs by counterparty, currency or amount with plain SQL. Rows are kept once
+ * their state is consumed, so queries join on the vault's state status to see only the current IOUs.
+ *
+ * Amounts are stored as their quantity in the smallest unit of the currency (e.g. pence), as in {@link
+ * net.corda.core.contracts.Amount}. The [outstanding] column is derived from [amount] and [paid] when the row is
+ * written, so "everything still owing more than X" is an indexed range scan rather than a computation in Java.
+ */
+public class IOUSchemaV1 extends MappedSchema {
+    public IOUSchemaV1() {
+        super(IOUSchema.class, 1, ImmutableList.of(PersistentIOU.class));
+    }
+
+    @Entity
+    @Table(name = "iou_states", indexes = {
+            @Index(name = "iou_lender_idx", columnList = "lender"),
+            @Index(name = "iou_borrower_idx", columnList = "borrower"),
+            @Index(name = "iou_currency_amount_idx", columnList = "currency, amount"),
+            @Index(name = "iou_currency_outstanding_idx", columnList = "currency, outstanding"),
+            @Index(name = "iou_linear_id_idx", columnList = "linear_id")
+    })
+    public static class PersistentIOU extends PersistentState {
+        @Column(name = "lender", nullable = false) private final String lender;
+        @Column(name = "borrower", nullable = false) private final String borrower;
+        @Column(name = "currency", nullable = false, length = 3) private final String currency;
+        @Column(name = "amount", nullable = false) private final long amount;
+        @Column(name = "paid", nullable = false) private final long paid;
+        @Column(name = "outstanding", nullable = false) private final long outstanding;
+        @Column(name = "linear_id", nullable = false) private final UUID linearId;
+
+        public PersistentIOU(String lender, String borrower, String currency, long amount, long paid, UUID linearId) {
+            this.lender = lender;
+            this.borrower = borrower;
+            this.currency = currency;
+            this.amount = amount;
+            this.paid = paid;
+            this.outstanding = amount - paid;
+            this.linearId = linearId;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentIOU() {
+            this.lender = null;
+            this.borrower = null;
+            this.currency = null;
+            this.amount = 0;
+            this.paid = 0;
+            this.outstanding = 0;
+            this.linearId = null;
+        }
+
+        public String getLender() {
+            return lender;
+        }
+
+        public String getBorrower() {
+            return borrower;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public long getPaid() {
+            return paid;
+        }
+
+        public long getOutstanding() {
+            return outstanding;
+        }
+
+        public UUID getLinearId() {
+            return linearId;
+        }
+    }
+}
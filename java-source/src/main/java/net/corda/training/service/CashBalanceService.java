@@ -0,0 +1,35 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.util.Currency;
+
+/**
+ * Keeps the node's {@link CashBalances} up to date from the cash vault feed, so that flows can check how much cash
+ * the node holds without running an aggregate vault query.
+ */
+@CordaService
+public class CashBalanceService extends SingletonSerializeAsToken {
+    private final CashBalances balances = new CashBalances();
+
+    public CashBalanceService(AppServiceHub serviceHub) {
+        DataFeed<Vault.Page<Cash.State>, Vault.Update<Cash.State>> feed = serviceHub.getVaultService()
+                .trackBy(Cash.State.class, CashBalances.SUM_BY_CURRENCY);
+        balances.load(feed.getSnapshot());
+        feed.getUpdates().subscribe(balances::apply);
+    }
+
+    public long getQuantity(Currency currency) {
+        return balances.getQuantity(currency);
+    }
+
+    public Amount<Currency> getBalance(Currency currency) {
+        return balances.getBalance(currency);
+    }
+}
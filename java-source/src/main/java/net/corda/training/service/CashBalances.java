@@ -0,0 +1,128 @@
+package net.corda.training.service;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.CriteriaExpression;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.schemas.CashSchemaV1;
+
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cash balances per currency, held as primitive long quantities and maintained incrementally from the cash vault
+ * update feed.
+ *
+ * Start the feed with {@link #SUM_BY_CURRENCY}: the vault takes the aggregate snapshot and registers the update
+ * feed atomically, so {@link #load} followed by {@link #apply} for each update never misses or double counts a state.
+ *
+ * Each update is netted per currency first and then applied under the lock readers take, so a reader sees either
+ * all of an update or none of it, never the consumed cash gone before the change that replaces it has arrived.
+ */
+public class CashBalances {
+    /** The same aggregate query as [GetBalances.getCashBalances]: the sum of unconsumed cash, grouped by currency. */
+    public static final QueryCriteria SUM_BY_CURRENCY = sumByCurrency();
+
+    // Guarded by this.
+    private final Map<Currency, long[]> quantities = new HashMap<>();
+    private long version;
+
+    private static QueryCriteria sumByCurrency() {
+        try {
+            CriteriaExpression sum = Builder.sum(
+                    CashSchemaV1.PersistentCashState.class.getDeclaredField("pennies"),
+                    ImmutableList.of(CashSchemaV1.PersistentCashState.class.getDeclaredField("currency")));
+            return new QueryCriteria.VaultCustomQueryCriteria(sum);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Seeds the balances from the snapshot of a feed started with {@link #SUM_BY_CURRENCY}. */
+    public void load(Vault.Page<Cash.State> snapshot) {
+        // The aggregate results alternate between the summed quantity and its currency code.
+        Map<Currency, Long> totals = new HashMap<>();
+        List<Object> results = snapshot.getOtherResults();
+        for (int i = 0; i + 1 < results.size(); i += 2) {
+            totals.merge(Currency.getInstance((String) results.get(i + 1)), (Long) results.get(i), Long::sum);
+        }
+        add(totals);
+    }
+
+    /** Applies the update's net change in each currency in one step, and returns those changes. */
+    public Quantities apply(Vault.Update<Cash.State> update) {
+        Map<Currency, Long> changes = new HashMap<>();
+        for (StateAndRef<Cash.State> produced : update.getProduced()) {
+            Amount<Issued<Currency>> amount = produced.getState().getData().getAmount();
+            changes.merge(amount.getToken().getProduct(), amount.getQuantity(), Long::sum);
+        }
+        for (StateAndRef<Cash.State> consumed : update.getConsumed()) {
+            Amount<Issued<Currency>> amount = consumed.getState().getData().getAmount();
+            changes.merge(amount.getToken().getProduct(), -amount.getQuantity(), Long::sum);
+        }
+        return new Quantities(add(changes), changes);
+    }
+
+    /** Adds the changes, and returns the version of the balances that includes them. */
+    private synchronized long add(Map<Currency, Long> changes) {
+        changes.forEach((currency, quantity) -> quantities.computeIfAbsent(currency, c -> new long[1])[0] += quantity);
+        return ++version;
+    }
+
+    /** The balance held in the given currency, in the currency's smallest unit (e.g. pence). */
+    public synchronized long getQuantity(Currency currency) {
+        long[] quantity = quantities.get(currency);
+        return quantity == null ? 0L : quantity[0];
+    }
+
+    public Amount<Currency> getBalance(Currency currency) {
+        return new Amount<>(getQuantity(currency), currency);
+    }
+
+    /** Every currency with a non-zero balance, in the same shape as [GetBalances.getCashBalances]. */
+    public synchronized Map<Currency, Amount<Currency>> getBalances() {
+        HashMap<Currency, Amount<Currency>> balances = new HashMap<>();
+        quantities.forEach((currency, quantity) -> {
+            if (quantity[0] != 0L) balances.put(currency, new Amount<>(quantity[0], currency));
+        });
+        return balances;
+    }
+
+    /** Every non-zero balance, as a quantity in the currency's smallest unit, with the version that holds them. */
+    public synchronized Quantities getQuantities() {
+        Map<Currency, Long> nonZero = new HashMap<>();
+        quantities.forEach((currency, quantity) -> {
+            if (quantity[0] != 0L) nonZero.put(currency, quantity[0]);
+        });
+        return new Quantities(version, nonZero);
+    }
+
+    /**
+     * Quantities per currency, in each currency's smallest unit, as of a [version] of the balances. The version
+     * counts the snapshot and the updates applied since, so a client holding the balances as of one version knows to
+     * skip any change at or below it.
+     */
+    public static final class Quantities {
+        public final long version;
+        public final Map<Currency, Long> quantities;
+
+        Quantities(long version, Map<Currency, Long> quantities) {
+            this.version = version;
+            this.quantities = quantities;
+        }
+
+        /** The number of digits after the decimal point of each currency, for formatting the quantities. */
+        public Map<Currency, Integer> getFractionDigits() {
+            Map<Currency, Integer> fractionDigits = new HashMap<>();
+            quantities.keySet().forEach(currency -> fractionDigits.put(currency, currency.getDefaultFractionDigits()));
+            return fractionDigits;
+        }
+    }
+}
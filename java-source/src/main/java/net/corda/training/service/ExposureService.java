@@ -0,0 +1,79 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.training.state.CreditLimitState;
+import net.corda.training.state.IOUState;
+
+import java.util.*;
+
+/**
+ * Keeps the node's {@link Exposures} to each counterparty up to date from the IOU vault feed, so that flows can check
+ * what a counterparty owes us without running an aggregate vault query.
+ *
+ * The exposures only include an IOU once it is recorded, so a lender also reserves what each issuance it signs will
+ * draw on its credit limits until the issuance is recorded. Concurrent issuances then can't each see the headroom
+ * the other is about to use.
+ *
+ * Limits are checked against the net exposure, what the borrower owes us less what we owe it, and not against the
+ * gross amount lent. That is intended: what we owe a borrower can be set off against what it owes us if it defaults,
+ * so it is the net amount that is at risk, and a borrower we owe money to may borrow that much beyond its limit.
+ */
+@CordaService
+public class ExposureService extends SingletonSerializeAsToken {
+    private final Exposures exposures;
+    /** The quantity reserved per borrower and currency, by the issuance reserving it. Guarded by this. */
+    private final Map<SecureHash, Map<List<Object>, Long>> reservations = new HashMap<>();
+
+    public ExposureService(AppServiceHub serviceHub) {
+        exposures = new Exposures(serviceHub.getMyInfo().getLegalIdentities().get(0).getName());
+        DataFeed<Vault.Page<IOUState>, Vault.Update<IOUState>> feed = serviceHub.getVaultService()
+                .trackBy(IOUState.class, Exposures.OUTSTANDING_BY_COUNTERPARTY);
+        exposures.load(feed.getSnapshot());
+        feed.getUpdates().subscribe(update -> {
+            exposures.apply(update);
+            for (StateAndRef<IOUState> produced : update.getProduced()) release(produced.getRef().getTxhash());
+        });
+    }
+
+    public long getQuantity(CordaX500Name counterparty, Currency currency) {
+        return exposures.getQuantity(counterparty, currency);
+    }
+
+    /**
+     * Reserves the quantity the issuance [txId] draws on each of our credit limits, unless that would take a borrower
+     * over its limit once its net exposure and every other reservation are counted. Returns whether it was reserved.
+     */
+    public synchronized boolean reserve(SecureHash txId, Map<CreditLimitState, Long> drawn) {
+        reservations.remove(txId);
+        final Map<List<Object>, Long> reservation = new HashMap<>();
+        for (Map.Entry<CreditLimitState, Long> limit : drawn.entrySet()) {
+            CreditLimitState creditLimit = limit.getKey();
+            CordaX500Name borrower = creditLimit.borrower.getName();
+            Currency currency = creditLimit.limit.getToken();
+            long committed = Math.addExact(getQuantity(borrower, currency), reserved(borrower, currency));
+            if (Math.addExact(committed, limit.getValue()) > creditLimit.limit.getQuantity()) return false;
+            reservation.merge(Arrays.asList(borrower, currency), limit.getValue(), Math::addExact);
+        }
+        reservations.put(txId, reservation);
+        return true;
+    }
+
+    /** Releases the issuance's reservation, once it is recorded or if it never will be. */
+    public synchronized void release(SecureHash txId) {
+        reservations.remove(txId);
+    }
+
+    private long reserved(CordaX500Name borrower, Currency currency) {
+        final List<Object> key = Arrays.asList(borrower, currency);
+        long total = 0;
+        for (Map<List<Object>, Long> reservation : reservations.values()) total += reservation.getOrDefault(key, 0L);
+        return total;
+    }
+}
@@ -0,0 +1,129 @@
+package net.corda.training.service;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.CriteriaExpression;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.training.schema.IOUSchemaV1;
+import net.corda.training.state.IOUState;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Net exposure to each counterparty per currency: the outstanding amount of the IOUs they owe us, minus that of the
+ * IOUs we owe them. Held as primitive long quantities and maintained incrementally from the IOU vault update feed.
+ *
+ * Start the feed with {@link #OUTSTANDING_BY_COUNTERPARTY}: as with {@link CashBalances}, the aggregate snapshot and
+ * the update feed are registered atomically, so {@link #load} followed by {@link #apply} for each update never misses
+ * or double counts an IOU.
+ */
+public class Exposures {
+    /** The sum of the outstanding column of unconsumed IOUs, grouped by lender, borrower and currency. */
+    public static final QueryCriteria OUTSTANDING_BY_COUNTERPARTY = outstandingByCounterparty();
+
+    private final CordaX500Name me;
+    private final Map<Key, AtomicLong> quantities = new ConcurrentHashMap<>();
+
+    public Exposures(CordaX500Name me) {
+        this.me = me;
+    }
+
+    private static QueryCriteria outstandingByCounterparty() {
+        try {
+            Class<IOUSchemaV1.PersistentIOU> iou = IOUSchemaV1.PersistentIOU.class;
+            CriteriaExpression sum = Builder.sum(iou.getDeclaredField("outstanding"), ImmutableList.of(
+                    iou.getDeclaredField("lender"), iou.getDeclaredField("borrower"), iou.getDeclaredField("currency")));
+            return new QueryCriteria.VaultCustomQueryCriteria(sum);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Seeds the exposures from the snapshot of a feed started with {@link #OUTSTANDING_BY_COUNTERPARTY}. */
+    public void load(Vault.Page<IOUState> snapshot) {
+        // The aggregate results are the summed quantity followed by the lender, borrower and currency code.
+        List<Object> results = snapshot.getOtherResults();
+        for (int i = 0; i + 3 < results.size(); i += 4) {
+            add(CordaX500Name.parse((String) results.get(i + 1)), CordaX500Name.parse((String) results.get(i + 2)),
+                    Currency.getInstance((String) results.get(i + 3)), (Long) results.get(i));
+        }
+    }
+
+    public void apply(Vault.Update<IOUState> update) {
+        for (StateAndRef<IOUState> produced : update.getProduced()) {
+            add(produced.getState().getData(), 1);
+        }
+        for (StateAndRef<IOUState> consumed : update.getConsumed()) {
+            add(consumed.getState().getData(), -1);
+        }
+    }
+
+    private void add(IOUState iou, int sign) {
+        long outstanding = iou.amount.getQuantity() - iou.paid.getQuantity();
+        add(iou.lender.getName(), iou.borrower.getName(), iou.amount.getToken(), sign * outstanding);
+    }
+
+    private void add(CordaX500Name lender, CordaX500Name borrower, Currency currency, long outstanding) {
+        if (lender.equals(me)) {
+            quantities.computeIfAbsent(new Key(borrower, currency), k -> new AtomicLong()).addAndGet(outstanding);
+        } else if (borrower.equals(me)) {
+            quantities.computeIfAbsent(new Key(lender, currency), k -> new AtomicLong()).addAndGet(-outstanding);
+        }
+    }
+
+    /** Our net exposure to the counterparty in the given currency, in the currency's smallest unit (e.g. pence). */
+    public long getQuantity(CordaX500Name counterparty, Currency currency) {
+        AtomicLong quantity = quantities.get(new Key(counterparty, currency));
+        return quantity == null ? 0L : quantity.get();
+    }
+
+    /**
+     * Every non-zero exposure, by counterparty and then currency, as a decimal amount of the currency. Negative
+     * values are amounts we owe the counterparty.
+     */
+    public Map<String, Map<Currency, BigDecimal>> getExposures() {
+        Map<String, Map<Currency, BigDecimal>> exposures = new TreeMap<>();
+        quantities.forEach((key, quantity) -> {
+            long value = quantity.get();
+            if (value != 0L) {
+                exposures.computeIfAbsent(key.counterparty.toString(), name -> new TreeMap<>(Comparator.comparing(Currency::getCurrencyCode)))
+                        .put(key.currency, toDecimal(value, key.currency));
+            }
+        });
+        return exposures;
+    }
+
+    /** An exposure as a decimal amount of the currency. It may be negative, which an [Amount] can't hold. */
+    private static BigDecimal toDecimal(long quantity, Currency currency) {
+        return BigDecimal.valueOf(quantity, currency.getDefaultFractionDigits());
+    }
+
+    private static final class Key {
+        private final CordaX500Name counterparty;
+        private final Currency currency;
+
+        private Key(CordaX500Name counterparty, Currency currency) {
+            this.counterparty = counterparty;
+            this.currency = currency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return counterparty.equals(other.counterparty) && currency.equals(other.currency);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * counterparty.hashCode() + currency.hashCode();
+        }
+    }
+}
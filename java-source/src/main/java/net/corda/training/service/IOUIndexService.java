@@ -0,0 +1,119 @@
+package net.corda.training.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.training.state.IOUState;
+import net.corda.training.state.PartyInterner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Keeps an in-memory index from an IOU's [linearId] to its current unconsumed {@link StateAndRef}.
+ *
+ * The index is bootstrapped from the vault when the node starts and then follows the IOU vault update feed, so flows
+ * can resolve a [linearId] without a database round trip. Lookups that miss the index fall back to the vault, and
+ * only the feed adds to the index: a state read from the vault may be consumed before it could be added, and would
+ * then never be removed.
+ *
+ * The lender and borrower of each indexed IOU are interned by the {@link PartyInterner}, so the index holds one copy
+ * of each counterparty however many IOUs name it.
+ */
+@CordaService
+public class IOUIndexService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(IOUIndexService.class);
+    private static final int PAGE_SIZE = 1000;
+    // Paging is only stable under a total order, so the bootstrap walks the vault in state ref order.
+    private static final Sort SORT_BY_STATE_REF = new Sort(ImmutableSet.of(new Sort.SortColumn(
+            new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF), Sort.Direction.ASC)));
+
+    private final AppServiceHub serviceHub;
+    private final Map<UniqueIdentifier, StateAndRef<IOUState>> index = new ConcurrentHashMap<>();
+    // States consumed while the index is still being loaded, so stale pages can't re-add them.
+    private final Set<StateRef> consumedDuringBootstrap = ConcurrentHashMap.newKeySet();
+    private volatile boolean bootstrapped = false;
+
+    public IOUIndexService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+
+        // Subscribe before loading so that no update can fall between the snapshot and the feed.
+        PageSpecification firstPage = new PageSpecification(DEFAULT_PAGE_NUM, PAGE_SIZE);
+        DataFeed<Vault.Page<IOUState>, Vault.Update<IOUState>> feed = serviceHub.getVaultService()
+                .trackBy(IOUState.class, new QueryCriteria.VaultQueryCriteria(), firstPage, SORT_BY_STATE_REF);
+        feed.getUpdates().subscribe(this::apply);
+
+        Vault.Page<IOUState> page = feed.getSnapshot();
+        int pageNumber = DEFAULT_PAGE_NUM;
+        while (true) {
+            page.getStates().forEach(this::load);
+            if ((long) pageNumber * PAGE_SIZE >= page.getTotalStatesAvailable()) break;
+            pageNumber++;
+            page = serviceHub.getVaultService().queryBy(IOUState.class, new QueryCriteria.VaultQueryCriteria(),
+                    new PageSpecification(pageNumber, PAGE_SIZE), SORT_BY_STATE_REF);
+        }
+        bootstrapped = true;
+        consumedDuringBootstrap.clear();
+        logger.info("Indexed {} unconsumed IOUs.", index.size());
+    }
+
+    /**
+     * Returns the current unconsumed IOU with the given [linearId], or throws if the node doesn't hold one.
+     */
+    public StateAndRef<IOUState> resolve(UniqueIdentifier linearId) {
+        StateAndRef<IOUState> indexed = index.get(linearId);
+        if (indexed != null) return indexed;
+
+        QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(
+                null, ImmutableList.of(linearId.getId()));
+        List<StateAndRef<IOUState>> states = serviceHub.getVaultService()
+                .queryBy(IOUState.class, queryCriteria).getStates();
+        if (states.isEmpty()) {
+            throw new IllegalArgumentException("No unconsumed IOU with linearId " + linearId + " in the vault.");
+        }
+        return states.get(0);
+    }
+
+    // Loading and applying are synchronized, so a state can't be consumed between the check and the put.
+    private synchronized void load(StateAndRef<IOUState> stateAndRef) {
+        if (consumedDuringBootstrap.contains(stateAndRef.getRef())) return;
+        index.putIfAbsent(stateAndRef.getState().getData().getLinearId(), intern(stateAndRef));
+    }
+
+    private synchronized void apply(Vault.Update<IOUState> update) {
+        for (StateAndRef<IOUState> consumed : update.getConsumed()) {
+            if (!bootstrapped) consumedDuringBootstrap.add(consumed.getRef());
+            index.remove(consumed.getState().getData().getLinearId(), consumed);
+        }
+        for (StateAndRef<IOUState> produced : update.getProduced()) {
+            index.put(produced.getState().getData().getLinearId(), intern(produced));
+        }
+    }
+
+    /** The index holds every IOU the node is party to, so their parties are interned as they are added. */
+    private static StateAndRef<IOUState> intern(StateAndRef<IOUState> stateAndRef) {
+        TransactionState<IOUState> state = stateAndRef.getState();
+        IOUState iou = PartyInterner.intern(state.getData());
+        if (iou == state.getData()) return stateAndRef;
+        return new StateAndRef<>(new TransactionState<>(iou, state.getContract(), state.getNotary(),
+                state.getEncumbrance(), state.getConstraint()), stateAndRef.getRef());
+    }
+}
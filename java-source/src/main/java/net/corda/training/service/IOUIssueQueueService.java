@@ -0,0 +1,223 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.StateRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.training.flow.IOUBatchIssueFlow;
+import net.corda.training.state.IOUState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Groups IOU issuance requests into batches, the ledger's equivalent of a database group commit.
+ *
+ * Requests are bucketed by borrower and lender. A bucket is flushed as one [IOUBatchIssueFlow] transaction as soon as
+ * it holds [maxBatchSize] IOUs, or [maxDelay] after its first request, whichever comes first. Each request is then
+ * completed with the {@link StateRef} of its own IOU, or with the failure of its batch: a batch is atomic, so one
+ * rejected IOU fails the others in its bucket.
+ *
+ * At most one batch per borrower and lender is in flight at a time; a bucket flushed while the previous one is still
+ * being issued waits for it. The lender then checks each batch against its credit limit with the last one counted.
+ *
+ * The window is set in the CorDapp config with `issueQueue.maxBatchSize` and `issueQueue.maxDelayMillis`. At most
+ * `issueQueue.maxPending` requests may be queued and not yet issuing, across all buckets and the batches waiting on
+ * one in flight; {@link #submit} rejects any more until some are issued, so a lender slower than its borrowers can't
+ * make the queue grow without bound. An outcome that is not polled for within `issueQueue.resultRetentionMillis` of
+ * its batch finishing is dropped, so abandoned tickets don't accumulate.
+ *
+ * Requests, batches and outcomes are all held in memory only. If the node stops, the queued requests are never
+ * issued and the outcome of any batch in flight is lost: a flow restored from its checkpoint finds its ticket
+ * unknown, even though its IOU may have been issued, and the caller must check the vault before retrying.
+ */
+@CordaService
+public class IOUIssueQueueService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(IOUIssueQueueService.class);
+    private static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 200;
+    private static final long DEFAULT_RESULT_RETENTION_MILLIS = 10 * 60 * 1000;
+    private static final int DEFAULT_MAX_PENDING = 10_000;
+
+    private final AppServiceHub serviceHub;
+    private final int maxBatchSize;
+    private final Duration maxDelay;
+    private final Duration resultRetention;
+    private final int maxPending;
+    // The buckets still collecting requests, the keys with a batch in flight, the flushed buckets waiting on them and
+    // the number of requests in both kinds of bucket, all guarded by buckets.
+    private final Map<List<Party>, Bucket> buckets = new HashMap<>();
+    private final Set<List<Party>> inFlight = new HashSet<>();
+    private final Map<List<Party>, Deque<Bucket>> waiting = new HashMap<>();
+    private int pending;
+    private final Map<UUID, CompletableFuture<StateRef>> results = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "iou-issue-queue");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public IOUIssueQueueService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        maxBatchSize = config.exists("issueQueue.maxBatchSize")
+                ? config.getInt("issueQueue.maxBatchSize") : DEFAULT_MAX_BATCH_SIZE;
+        maxDelay = Duration.ofMillis(config.exists("issueQueue.maxDelayMillis")
+                ? config.getLong("issueQueue.maxDelayMillis") : DEFAULT_MAX_DELAY_MILLIS);
+        resultRetention = Duration.ofMillis(config.exists("issueQueue.resultRetentionMillis")
+                ? config.getLong("issueQueue.resultRetentionMillis") : DEFAULT_RESULT_RETENTION_MILLIS);
+        maxPending = config.exists("issueQueue.maxPending")
+                ? config.getInt("issueQueue.maxPending") : DEFAULT_MAX_PENDING;
+    }
+
+    /** The longest a request waits for its bucket to be flushed. */
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Queues an IOU for issuance and returns the ticket with which to {@link #poll} for its outcome. Throws if the
+     * queue already holds [maxPending] requests.
+     */
+    public UUID submit(IOUState state) throws FlowException {
+        Party us = serviceHub.getMyInfo().getLegalIdentities().get(0);
+        if (!state.getParticipants().contains(us)) {
+            throw new IllegalArgumentException("We must be the lender or borrower of every IOU issued.");
+        }
+        UUID ticket = UUID.randomUUID();
+        List<Party> key = Arrays.asList(state.borrower, state.lender);
+
+        Bucket full = null;
+        synchronized (buckets) {
+            if (pending >= maxPending) {
+                throw new FlowException("The issuance queue is full with " + pending + " requests; try again later.");
+            }
+            pending++;
+            results.put(ticket, new CompletableFuture<>());
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket();
+                buckets.put(key, bucket);
+                Bucket scheduled = bucket;
+                timer.schedule(() -> flush(key, scheduled), maxDelay.toMillis(), TimeUnit.MILLISECONDS);
+            }
+            bucket.states.add(state);
+            bucket.tickets.add(ticket);
+            if (bucket.states.size() >= maxBatchSize) {
+                buckets.remove(key);
+                full = bucket;
+            }
+        }
+        if (full != null) start(key, full);
+        return ticket;
+    }
+
+    /**
+     * Returns the ref of the ticket's IOU once it is issued, or null while it is still pending. Throws if its batch
+     * failed or the ticket is unknown, which is also the case for tickets issued before the node restarted.
+     */
+    public StateRef poll(UUID ticket) throws FlowException {
+        CompletableFuture<StateRef> result = results.get(ticket);
+        if (result == null) throw new FlowException("Unknown issuance ticket " + ticket + ".");
+        if (!result.isDone()) return null;
+        results.remove(ticket);
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            throw new FlowException("The IOU's batch failed to issue.", e.getCause());
+        }
+    }
+
+    /** Flushes a bucket when its window ends, unless it filled up and was flushed already. */
+    private void flush(List<Party> key, Bucket bucket) {
+        synchronized (buckets) {
+            if (buckets.get(key) != bucket) return;
+            buckets.remove(key);
+        }
+        start(key, bucket);
+    }
+
+    /** Issues a flushed bucket, or queues it behind the batch already in flight for its key. */
+    private void start(List<Party> key, Bucket bucket) {
+        synchronized (buckets) {
+            if (!inFlight.add(key)) {
+                waiting.computeIfAbsent(key, k -> new ArrayDeque<>()).add(bucket);
+                return;
+            }
+        }
+        issue(key, bucket);
+    }
+
+    private void issue(List<Party> key, Bucket bucket) {
+        synchronized (buckets) {
+            pending -= bucket.states.size();
+        }
+        try {
+            serviceHub.startFlow(new IOUBatchIssueFlow.InitiatorFlow(bucket.states)).getReturnValue().then(done -> {
+                try {
+                    complete(bucket, done.get());
+                } catch (ExecutionException e) {
+                    fail(bucket, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(bucket, e);
+                }
+                next(key);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            fail(bucket, e);
+            next(key);
+        }
+    }
+
+    /** Issues the next bucket waiting for the key, if any, once its batch in flight has finished. */
+    private void next(List<Party> key) {
+        final Bucket bucket;
+        synchronized (buckets) {
+            Deque<Bucket> queued = waiting.get(key);
+            bucket = queued == null ? null : queued.poll();
+            if (queued != null && queued.isEmpty()) waiting.remove(key);
+            if (bucket == null) {
+                inFlight.remove(key);
+                return;
+            }
+        }
+        issue(key, bucket);
+    }
+
+    /** The batch flow adds the outputs in the order they were queued, so each ticket's IOU is at its own index. */
+    private void complete(Bucket bucket, SignedTransaction stx) {
+        for (int i = 0; i < bucket.tickets.size(); i++) {
+            CompletableFuture<StateRef> result = results.get(bucket.tickets.get(i));
+            if (result != null) result.complete(new StateRef(stx.getId(), i));
+        }
+        expire(bucket);
+    }
+
+    private void fail(Bucket bucket, Throwable cause) {
+        logger.warn("Failed to issue a batch of {} IOUs.", bucket.states.size(), cause);
+        for (UUID ticket : bucket.tickets) {
+            CompletableFuture<StateRef> result = results.get(ticket);
+            if (result != null) result.completeExceptionally(cause);
+        }
+        expire(bucket);
+    }
+
+    /** Drops the bucket's outcomes once they have been left unpolled for the retention period. */
+    private void expire(Bucket bucket) {
+        timer.schedule(() -> bucket.tickets.forEach(results::remove), resultRetention.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Bucket {
+        private final List<IOUState> states = new ArrayList<>();
+        private final List<UUID> tickets = new ArrayList<>();
+    }
+}
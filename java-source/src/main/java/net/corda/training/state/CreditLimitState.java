@@ -0,0 +1,99 @@
+package net.corda.training.state;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.BelongsToContract;
+import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.ConstructorForDeserialization;
+import net.corda.training.contract.CreditLimitContract;
+
+import java.util.Currency;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The most the [lender] is prepared to lend the [borrower] in one currency, published by the lender.
+ *
+ * IOU issuances include the current limit as a reference input. Reference inputs are checked by the notary to be
+ * current but are not consumed, so any number of issuances against the same limit can be notarised concurrently.
+ *
+ * On the ledger, the contract can only hold the IOUs of each issuance to the limit. The lender's node holds the
+ * borrower's whole net exposure to it when signing, counting issuances it has signed but not yet recorded. See the
+ * {@link net.corda.training.service.ExposureService}.
+ */
+@BelongsToContract(CreditLimitContract.class)
+public class CreditLimitState implements LinearState {
+
+    public final Party lender;
+    public final Party borrower;
+    public final Amount<Currency> limit;
+    private final UniqueIdentifier linearId;
+
+    @ConstructorForDeserialization
+    private CreditLimitState(Party lender, Party borrower, Amount<Currency> limit, UniqueIdentifier linearId) {
+        this.lender = lender;
+        this.borrower = borrower;
+        this.limit = limit;
+        this.linearId = linearId;
+    }
+
+    public CreditLimitState(Party lender, Party borrower, Amount<Currency> limit) {
+        this(lender, borrower, limit, new UniqueIdentifier());
+    }
+
+    public Party getLender() {
+        return lender;
+    }
+
+    public Party getBorrower() {
+        return borrower;
+    }
+
+    public Amount<Currency> getLimit() {
+        return limit;
+    }
+
+    @Override
+    public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
+
+    /** The borrower is a participant too, so that it holds the limit to reference when it issues IOUs. */
+    @Override
+    public List<AbstractParty> getParticipants() {
+        return ImmutableList.of(lender, borrower);
+    }
+
+    /** Whether this limit applies to an IOU from [lender] to [borrower]. */
+    public boolean covers(IOUState iou) {
+        return lender.equals(iou.lender) && borrower.equals(iou.borrower) && limit.getToken().equals(iou.amount.getToken());
+    }
+
+    public CreditLimitState withLimit(Amount<Currency> newLimit) {
+        return new CreditLimitState(lender, borrower, newLimit, linearId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CreditLimitState other = (CreditLimitState) o;
+        return lender.equals(other.lender)
+                && borrower.equals(other.borrower)
+                && limit.equals(other.limit)
+                && linearId.equals(other.linearId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(lender, borrower, limit, linearId);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CreditLimitState(lender=%s, borrower=%s, limit=%s, linearId=%s)", lender, borrower, limit, linearId);
+    }
+}
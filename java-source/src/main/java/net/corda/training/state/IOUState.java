@@ -1,26 +1,74 @@
 package net.corda.training.state;
 
 import net.corda.core.contracts.Amount;
-import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.BelongsToContract;
 import net.corda.core.contracts.LinearState;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.identity.Party;
 import net.corda.core.identity.AbstractParty;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.schema.IOUSchemaV1;
 
 import java.util.*;
 import com.google.common.collect.ImmutableList;
 import net.corda.core.serialization.ConstructorForDeserialization;
 
-import javax.validation.constraints.NotNull;
-
 /**
- * This is where you'll add the definition of your state object. Look at the unit tests in [IOUStateTests] for
- * instructions on how to complete the [IOUState] class.
+ * The IOU state object. It records that the [borrower] owes the [lender] an [amount], of which [paid] has been
+ * settled so far. Each update of an IOU shares the same [linearId].
+ *
+ * The state is also a {@link QueryableState}, so the node persists it into the {@link IOUSchemaV1} table and vault
+ * lookups by counterparty, currency, amount or amount outstanding can be answered in SQL rather than by
+ * deserializing every IOU.
  *
+ * On the wire the state is written in the compact form of the {@link IOUStateSerializer}.
  */
-public class IOUState implements ContractState {
+@BelongsToContract(IOUContract.class)
+public class IOUState implements LinearState, QueryableState {
+
+    public final Amount<Currency> amount;
+    public final Party lender;
+    public final Party borrower;
+    public final Amount<Currency> paid;
+    private final UniqueIdentifier linearId;
+
+    // Package-private constructor used for copying a State object and by the IOUStateSerializer
+    @ConstructorForDeserialization
+    IOUState(Amount<Currency> amount, Party lender, Party borrower, Amount<Currency> paid, UniqueIdentifier linearId){
+       this.amount = amount;
+       this.lender = lender;
+       this.borrower = borrower;
+       this.paid = paid;
+       this.linearId = linearId;
+    }
 
-    public IOUState() {}
+    public IOUState(Amount<Currency> amount, Party lender, Party borrower) {
+        this(amount, lender, borrower, new Amount<>(0, amount.getToken()), new UniqueIdentifier());
+    }
+
+    public Amount<Currency> getAmount() {
+        return amount;
+    }
+
+    public Party getLender() {
+        return lender;
+    }
+
+    public Party getBorrower() {
+        return borrower;
+    }
+
+    public Amount<Currency> getPaid() {
+        return paid;
+    }
+
+    @Override
+    public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
 
     /**
      *  This method will return a list of the nodes which can "use" this state in a valid transaction. In this case, the
@@ -28,7 +76,63 @@ public class IOUState implements ContractState {
      */
     @Override
     public List<AbstractParty> getParticipants() {
-        return ImmutableList.of();
+        return ImmutableList.of(lender, borrower);
     }
 
-}
\ No newline at end of file
+    /**
+     * Helper methods for when building transactions for settling and transferring IOUs.
+     * - [pay] adds an amount to the paid property. It does no validation.
+     * - [withNewLender] creates a copy of the current state with a newly specified lender. For use when transferring.
+     */
+    public IOUState pay(Amount<Currency> amountToPay) {
+        Amount<Currency> newAmountPaid = this.paid.plus(amountToPay);
+        return new IOUState(amount, lender, borrower, newAmountPaid, linearId);
+    }
+
+    public IOUState withNewLender(Party newLender) {
+        return new IOUState(amount, newLender, borrower, paid, linearId);
+    }
+
+    @Override
+    public PersistentState generateMappedObject(MappedSchema schema) {
+        if (schema instanceof IOUSchemaV1) {
+            return new IOUSchemaV1.PersistentIOU(
+                    lender.getName().toString(),
+                    borrower.getName().toString(),
+                    amount.getToken().getCurrencyCode(),
+                    amount.getQuantity(),
+                    paid.getQuantity(),
+                    linearId.getId());
+        } else {
+            throw new IllegalArgumentException("Unrecognised schema " + schema);
+        }
+    }
+
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(new IOUSchemaV1());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IOUState other = (IOUState) o;
+        return amount.equals(other.amount)
+                && lender.equals(other.lender)
+                && borrower.equals(other.borrower)
+                && paid.equals(other.paid)
+                && linearId.equals(other.linearId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(amount, lender, borrower, paid, linearId);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IOUState(amount=%s, lender=%s, borrower=%s, paid=%s, linearId=%s)",
+                amount, lender, borrower, paid, linearId);
+    }
+}
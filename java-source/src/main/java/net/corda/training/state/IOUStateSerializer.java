@@ -0,0 +1,73 @@
+package net.corda.training.state;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SerializationCustomSerializer;
+
+import java.util.Currency;
+import java.util.UUID;
+
+/**
+ * Serializes an {@link IOUState} through a flat {@link Proxy} rather than field by field.
+ *
+ * The default form writes [amount] and [paid] as two full {@link Amount} objects, each with its own display token
+ * size and currency. The proxy keeps them as two longs sharing one ISO currency code, so it refuses a state whose
+ * [paid] is in a different currency from its [amount] rather than silently converting it.
+ *
+ * The lender and borrower are still written in full, name and key. Each output of a transaction is serialized as its
+ * own component and a custom serializer has no access to the transaction around it, so it cannot refer to the keys
+ * the transaction already holds; the proxy only saves on the amounts and the identifier.
+ *
+ * Custom serializers are picked up from the CorDapp by the node, so no registration is needed.
+ */
+public class IOUStateSerializer implements SerializationCustomSerializer<IOUState, IOUStateSerializer.Proxy> {
+
+    @CordaSerializable
+    public static class Proxy {
+        public final long amount;
+        public final long paid;
+        public final String currency;
+        public final Party lender;
+        public final Party borrower;
+        public final String externalId;
+        public final UUID id;
+
+        public Proxy(long amount, long paid, String currency, Party lender, Party borrower, String externalId, UUID id) {
+            this.amount = amount;
+            this.paid = paid;
+            this.currency = currency;
+            this.lender = lender;
+            this.borrower = borrower;
+            this.externalId = externalId;
+            this.id = id;
+        }
+    }
+
+    @Override
+    public Proxy toProxy(IOUState state) {
+        if (!state.paid.getToken().equals(state.amount.getToken())) {
+            throw new IllegalArgumentException("An IOU's paid amount must be in the currency of its amount.");
+        }
+        return new Proxy(
+                state.amount.getQuantity(),
+                state.paid.getQuantity(),
+                state.amount.getToken().getCurrencyCode(),
+                state.lender,
+                state.borrower,
+                state.getLinearId().getExternalId(),
+                state.getLinearId().getId());
+    }
+
+    @Override
+    public IOUState fromProxy(Proxy proxy) {
+        Currency currency = Currency.getInstance(proxy.currency);
+        return new IOUState(
+                new Amount<>(proxy.amount, currency),
+                proxy.lender,
+                proxy.borrower,
+                new Amount<>(proxy.paid, currency),
+                new UniqueIdentifier(proxy.externalId, proxy.id));
+    }
+}
@@ -0,0 +1,33 @@
+package net.corda.training.state;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import net.corda.core.identity.Party;
+
+/**
+ * Maps the {@link Party}s named by the {@link IOUState}s a cache holds to one canonical instance each.
+ *
+ * A cache of a node's IOUs typically holds a great many with the same few counterparties, and each deserialized state
+ * otherwise brings its own copy of the party's X.500 name and public key. Parties are equal when their owning keys
+ * are, which is also what the interner compares. The interner holds its instances weakly, so parties no longer
+ * referenced by any state can still be collected.
+ *
+ * States are only interned as a long-lived cache such as the {@link net.corda.training.service.IOUIndexService} takes
+ * them in, so deserializing and verifying a transaction never touches the interner.
+ *
+ * Currencies need no equivalent: {@link java.util.Currency#getInstance} already returns one instance per code.
+ */
+public final class PartyInterner {
+    private static final Interner<Party> PARTIES = Interners.newWeakInterner();
+
+    private PartyInterner() {
+    }
+
+    /** Returns the IOU with its lender and borrower interned, or the IOU itself if they already are. */
+    public static IOUState intern(IOUState iou) {
+        Party lender = PARTIES.intern(iou.lender);
+        Party borrower = PARTIES.intern(iou.borrower);
+        if (lender == iou.lender && borrower == iou.borrower) return iou;
+        return new IOUState(iou.amount, lender, borrower, iou.paid, iou.getLinearId());
+    }
+}
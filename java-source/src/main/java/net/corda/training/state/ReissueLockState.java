@@ -0,0 +1,73 @@
+package net.corda.training.state;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.BelongsToContract;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.training.contract.IOUContract;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Locks a re-issued IOU until the IOU it replaces has been retired. See the [IOUReissueFlow].
+ *
+ * A recreated IOU is created encumbered by this lock, which names the [retired] state. The two can only be consumed
+ * together, by a transaction that carries the notarised retirement of [retired], so a recreation signed ahead of its
+ * retirement can never be spent alongside the IOU it replaces.
+ */
+@BelongsToContract(IOUContract.class)
+public class ReissueLockState implements ContractState {
+
+    public final StateRef retired;
+    public final Party lender;
+    public final Party borrower;
+
+    public ReissueLockState(StateRef retired, Party lender, Party borrower) {
+        this.retired = retired;
+        this.lender = lender;
+        this.borrower = borrower;
+    }
+
+    public StateRef getRetired() {
+        return retired;
+    }
+
+    public Party getLender() {
+        return lender;
+    }
+
+    public Party getBorrower() {
+        return borrower;
+    }
+
+    @Override
+    public List<AbstractParty> getParticipants() {
+        return ImmutableList.of(lender, borrower);
+    }
+
+    /** Whether this lock is held by the lender and borrower of [iou]. */
+    public boolean locks(IOUState iou) {
+        return lender.equals(iou.lender) && borrower.equals(iou.borrower);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ReissueLockState other = (ReissueLockState) o;
+        return retired.equals(other.retired) && lender.equals(other.lender) && borrower.equals(other.borrower);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(retired, lender, borrower);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReissueLockState(retired=%s, lender=%s, borrower=%s)", retired, lender, borrower);
+    }
+}
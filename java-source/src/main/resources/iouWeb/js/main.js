@@ -1,7 +1,7 @@
 "use strict";
 
 // Define your backend here.
-angular.module('demoAppModule', ['ui.bootstrap']).controller('DemoAppCtrl', function($http, $location, $uibModal) {
+angular.module('demoAppModule', ['ui.bootstrap']).controller('DemoAppCtrl', function($http, $location, $uibModal, $scope) {
     const demoApp = this;
 
     const apiBaseURL = "/api/iou/";
@@ -72,16 +72,88 @@ angular.module('demoAppModule', ['ui.bootstrap']).controller('DemoAppCtrl', func
         settleModal.result.then(() => {}, () => {});
     };
 
-    /** Refreshes the front-end. */
+    // IOUs keyed by state ref, so that vault deltas can be applied in place.
+    let iousByRef = {};
+    const refKey = (ref) => ref.txhash + ":" + ref.index;
+    const showIOUs = () => demoApp.ious = Object.keys(iousByRef).map((key) => iousByRef[key]);
+
+    /** Applies an IOU vault delta pushed by the server. */
+    const applyIOUUpdate = (update) => {
+        update.consumed.forEach((ref) => delete iousByRef[refKey(ref)]);
+        update.produced.forEach((stateAndRef) => iousByRef[refKey(stateAndRef.ref)] = stateAndRef.state.data);
+        showIOUs();
+    };
+
+    // Cash balances in each currency's smallest unit (e.g. pence), as of a version of the server's balances.
+    let cashQuantities = {};
+    let cashVersion = 0;
+    const fractionDigits = {};
+    const formatCash = (currency, quantity) => new Intl.NumberFormat(undefined, {
+        style: "currency",
+        currency: currency,
+        minimumFractionDigits: fractionDigits[currency],
+        maximumFractionDigits: fractionDigits[currency]
+    }).format(quantity / Math.pow(10, fractionDigits[currency]));
+    const showCash = () => {
+        const balances = {};
+        Object.keys(cashQuantities).filter((currency) => cashQuantities[currency] !== 0)
+            .forEach((currency) => balances[currency] = formatCash(currency, cashQuantities[currency]));
+        demoApp.cashBalances = balances;
+    };
+
+    /** Applies a cash balance delta pushed by the server, unless the balances already include it. */
+    const applyCashUpdate = (update) => {
+        if (update.version <= cashVersion) return;
+        cashVersion = update.version;
+        Object.assign(fractionDigits, update.fractionDigits);
+        Object.keys(update.balanceChanges).forEach((currency) =>
+            cashQuantities[currency] = (cashQuantities[currency] || 0) + update.balanceChanges[currency]);
+        showCash();
+    };
+
+    // Deltas received while a refresh is loading are replayed once it completes. The fetched cash balances may
+    // already include some of the buffered cash deltas, which their versions tell apart.
+    let loading = false;
+    let bufferedIOUUpdates = [];
+    let bufferedCashUpdates = [];
+    const updates = new EventSource(apiBaseURL + "updates");
+    updates.addEventListener("iou", (event) => $scope.$apply(() => {
+        const update = JSON.parse(event.data);
+        if (loading) bufferedIOUUpdates.push(update); else applyIOUUpdate(update);
+    }));
+    updates.addEventListener("cash", (event) => $scope.$apply(() => {
+        const update = JSON.parse(event.data);
+        if (loading) bufferedCashUpdates.push(update); else applyCashUpdate(update);
+    }));
+
+    /** Refreshes the front-end. Only needed on start-up; afterwards the vault deltas keep it up to date. */
     demoApp.refresh = () => {
-        // Update the list of IOUs.
-        $http.get(apiBaseURL + "ious").then((response) => demoApp.ious =
-            Object.keys(response.data).map((key) => response.data[key].state.data));
+        loading = true;
+        iousByRef = {};
+
+        // Update the list of IOUs, following the continuation cursor one page at a time.
+        const loadIOUs = (cursor) => $http.get(apiBaseURL + "ious", { params: { cursor: cursor } }).then((response) => {
+            response.data.states.forEach((stateAndRef) => iousByRef[refKey(stateAndRef.ref)] = stateAndRef.state.data);
+            if (response.data.nextCursor) return loadIOUs(response.data.nextCursor);
+        });
 
         // Update the cash balances.
-        $http.get(apiBaseURL + "cash-balances").then((response) => demoApp.cashBalances =
-            response.data);
-    }
+        const loadCashBalances = $http.get(apiBaseURL + "cash-quantities").then((response) => {
+            cashQuantities = response.data.quantities;
+            cashVersion = response.data.version;
+            Object.assign(fractionDigits, response.data.fractionDigits);
+        });
+
+        Promise.all([loadIOUs(), loadCashBalances]).then(() => $scope.$apply(() => {
+            loading = false;
+            bufferedIOUUpdates.forEach(applyIOUUpdate);
+            bufferedIOUUpdates = [];
+            showIOUs();
+            bufferedCashUpdates.forEach(applyCashUpdate);
+            bufferedCashUpdates = [];
+            showCash();
+        }));
+    };
 
     demoApp.refresh();
 });
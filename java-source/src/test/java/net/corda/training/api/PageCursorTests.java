@@ -0,0 +1,109 @@
+package net.corda.training.api;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.*;
+import net.corda.training.flow.IOUIssueFlow;
+import net.corda.training.flow.IOUTransferFlow;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that paging through a {@link PageCursor}'s snapshot returns every state once, however the vault changes
+ * between pages.
+ */
+public class PageCursorTests {
+    private static final Sort SORT_BY_STATE_REF = new Sort(ImmutableSet.of(new Sort.SortColumn(
+            new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF), Sort.Direction.ASC)));
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode lender, borrower, newLender;
+
+    @Before
+    public void setup() {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(TestCordapp.findCordapp("net.corda.training"))
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        lender = mockNetwork.createNode(new MockNodeParameters());
+        borrower = mockNetwork.createNode(new MockNodeParameters());
+        newLender = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void statesConsumedBetweenPagesAreNeitherSkippedNorRepeated() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            run(lender.startFlow(new IOUIssueFlow.InitiatorFlow(
+                    new IOUState(Currencies.POUNDS(i), party(lender), party(borrower)))));
+        }
+        List<StateRef> expected = new ArrayList<>();
+        for (StateAndRef<IOUState> state : page(new QueryCriteria.VaultQueryCriteria(), 1, 10).getStates()) {
+            expected.add(state.getRef());
+        }
+        PageCursor cursor = PageCursor.first(1, lender.getServices().getClock().instant());
+
+        List<StateRef> seen = new ArrayList<>();
+        Vault.Page<IOUState> first = page(cursor.criteria(), cursor.pageNumber, cursor.pageSize);
+        seen.add(first.getStates().get(0).getRef());
+        // Consuming the state already served would shift every later offset over the unconsumed states alone.
+        run(lender.startFlow(new IOUTransferFlow.InitiatorFlow(
+                first.getStates().get(0).getState().getData().getLinearId(), party(newLender))));
+
+        for (cursor = cursor.next(); ; cursor = cursor.next()) {
+            Vault.Page<IOUState> page = page(cursor.criteria(), cursor.pageNumber, cursor.pageSize);
+            for (StateAndRef<IOUState> state : page.getStates()) seen.add(state.getRef());
+            if ((long) cursor.pageNumber * cursor.pageSize >= page.getTotalStatesAvailable()) break;
+        }
+
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void cursorSurvivesEncoding() {
+        PageCursor cursor = PageCursor.first(25, Instant.ofEpochMilli(1_234_567L)).next();
+
+        PageCursor decoded = PageCursor.decode(cursor.encode());
+
+        assertEquals(2, decoded.pageNumber);
+        assertEquals(25, decoded.pageSize);
+        assertEquals(Instant.ofEpochMilli(1_234_567L), decoded.snapshot);
+    }
+
+    private Vault.Page<IOUState> page(QueryCriteria criteria, int pageNumber, int pageSize) {
+        return lender.transaction(() -> lender.getServices().getVaultService().queryBy(IOUState.class, criteria,
+                new PageSpecification(pageNumber, pageSize), SORT_BY_STATE_REF));
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+}
@@ -0,0 +1,79 @@
+package net.corda.training.benchmark;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkNotarySpec;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.MockNodeParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import net.corda.training.flow.IOUBatchIssueFlow;
+import net.corda.training.flow.IOUIssueFlow;
+import net.corda.training.state.IOUState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+
+/**
+ * Compares IOU issuance throughput of the single-IOU [IOUIssueFlow] against the [IOUBatchIssueFlow], issuing the
+ * same number of IOUs from one borrower to one lender on a {@link MockNetwork}. Run it from the IDE, optionally
+ * passing the number of IOUs and the batch size as arguments:
+ *
+ *     IOUIssueThroughputBenchmark 1000 100
+ *
+ * The mock network runs every node in one JVM, so the absolute figures understate real network and notary latency,
+ * which the batch flow saves on proportionally more.
+ */
+public class IOUIssueThroughputBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        MockNetwork mockNetwork = new MockNetwork(new MockNetworkParameters()
+                .withCordappsForAllNodes(Arrays.asList(TestCordapp.findCordapp("net.corda.training")))
+                .withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        StartedMockNode borrower = mockNetwork.createNode(new MockNodeParameters());
+        StartedMockNode lender = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+
+        Party borrowerParty = borrower.getInfo().getLegalIdentities().get(0);
+        Party lenderParty = lender.getInfo().getLegalIdentities().get(0);
+        Amount<Currency> amount = new Amount<>(1000, Currency.getInstance("GBP"));
+
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                run(mockNetwork, borrower.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(amount, lenderParty, borrowerParty))));
+            }
+            report("single", count, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int issued = 0; issued < count; issued += batchSize) {
+                List<IOUState> batch = new ArrayList<>();
+                for (int i = issued; i < Math.min(count, issued + batchSize); i++) {
+                    batch.add(new IOUState(amount, lenderParty, borrowerParty));
+                }
+                run(mockNetwork, borrower.startFlow(new IOUBatchIssueFlow.InitiatorFlow(batch)));
+            }
+            report("batch of " + batchSize, count, System.nanoTime() - start);
+        } finally {
+            mockNetwork.stopNodes();
+        }
+    }
+
+    private static void run(MockNetwork mockNetwork, CordaFuture<SignedTransaction> future) throws Exception {
+        mockNetwork.runNetwork();
+        future.get();
+    }
+
+    private static void report(String label, int count, long nanos) {
+        System.out.printf("%-14s | %,6d IOUs | %,8d ms | %,10.1f IOUs/s%n",
+                label, count, nanos / 1_000_000, count / (nanos / 1_000_000_000.0));
+    }
+}
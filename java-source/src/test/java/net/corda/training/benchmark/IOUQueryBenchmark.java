@@ -0,0 +1,124 @@
+package net.corda.training.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import kotlin.Pair;
+import net.corda.core.contracts.Amount;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.nodeapi.internal.persistence.CordaPersistence;
+import net.corda.testing.core.DummyCommandData;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.schema.IOUSchemaV1;
+import net.corda.training.state.IOUState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static net.corda.testing.node.MockServicesKt.makeTestIdentityService;
+import static net.corda.training.TestUtils.ALICE;
+
+/**
+ * Measures vault query latency for IOU lookups that are served by the indexed {@link IOUSchemaV1} columns.
+ *
+ * The vault is seeded directly with issuance transactions (no flows, no notary) so that large vault sizes can be
+ * reached in reasonable time. Run it from the IDE, optionally passing the vault sizes to test as arguments:
+ *
+ *     IOUQueryBenchmark 10000 100000 1000000
+ *
+ * Do not use in a production environment.
+ */
+public class IOUQueryBenchmark {
+    private static final int IOUS_PER_TRANSACTION = 1000;
+    private static final int COUNTERPARTIES = 12;
+    private static final int ITERATIONS = 20;
+    private static final List<Currency> CURRENCIES = Arrays.asList(
+            Currency.getInstance("GBP"), Currency.getInstance("USD"), Currency.getInstance("EUR"));
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        for (String arg : args) sizes.add(Integer.parseInt(arg));
+        if (sizes.isEmpty()) sizes = Arrays.asList(10_000, 100_000, 1_000_000);
+
+        List<TestIdentity> lenders = new ArrayList<>();
+        for (int i = 0; i < COUNTERPARTIES; i++) {
+            lenders.add(new TestIdentity(new CordaX500Name("Lender" + i, "London", "GB")));
+        }
+
+        for (int size : sizes) {
+            run(size, lenders);
+        }
+    }
+
+    private static void run(int size, List<TestIdentity> lenders) throws Exception {
+        Pair<CordaPersistence, MockServices> databaseAndServices = MockServices.makeTestDatabaseAndMockServices(
+                ImmutableList.of("net.corda.training"),
+                makeTestIdentityService(ALICE.getIdentity()),
+                ALICE);
+        CordaPersistence database = databaseAndServices.getFirst();
+        MockServices services = databaseAndServices.getSecond();
+
+        long seedStart = System.nanoTime();
+        for (int issued = 0; issued < size; issued += IOUS_PER_TRANSACTION) {
+            TransactionBuilder builder = new TransactionBuilder(null);
+            for (int i = issued; i < Math.min(size, issued + IOUS_PER_TRANSACTION); i++) {
+                Currency currency = CURRENCIES.get(i % CURRENCIES.size());
+                TestIdentity lender = lenders.get(i % lenders.size());
+                builder.addOutputState(new IOUState(new Amount<>(100 + (i % 10_000) * 100L, currency),
+                        lender.getParty(), ALICE.getParty()), IOUContract.IOU_CONTRACT_ID);
+            }
+            builder.addCommand(DummyCommandData.INSTANCE, ALICE.getPublicKey());
+            SignedTransaction stx = services.signInitialTransaction(builder);
+            database.transaction(tx -> {
+                services.recordTransactions(stx);
+                return null;
+            });
+        }
+        System.out.printf("Seeded %d IOUs in %d ms%n", size, (System.nanoTime() - seedStart) / 1_000_000);
+
+        String lenderName = lenders.get(0).getName().toString();
+        QueryCriteria byLender = new QueryCriteria.VaultCustomQueryCriteria(
+                Builder.equal(IOUSchemaV1.PersistentIOU.class.getDeclaredField("lender"), lenderName));
+        QueryCriteria byCurrency = new QueryCriteria.VaultCustomQueryCriteria(
+                Builder.equal(IOUSchemaV1.PersistentIOU.class.getDeclaredField("currency"), "GBP"));
+        QueryCriteria byAmount = new QueryCriteria.VaultCustomQueryCriteria(
+                Builder.greaterThan(IOUSchemaV1.PersistentIOU.class.getDeclaredField("amount"), 900_000L));
+        QueryCriteria byOutstanding = byCurrency.and(new QueryCriteria.VaultCustomQueryCriteria(
+                Builder.greaterThanOrEqual(IOUSchemaV1.PersistentIOU.class.getDeclaredField("outstanding"), 900_000L)));
+
+        time(size, "lender", database, () -> query(services, byLender));
+        time(size, "currency", database, () -> query(services, byCurrency));
+        time(size, "amount", database, () -> query(services, byAmount));
+        time(size, "outstanding", database, () -> query(services, byOutstanding));
+
+        database.close();
+    }
+
+    private static Vault.Page<IOUState> query(MockServices services, QueryCriteria criteria) {
+        return services.getVaultService().queryBy(IOUState.class, criteria, new PageSpecification(1, 200));
+    }
+
+    private static void time(int size, String label, CordaPersistence database, Supplier<Vault.Page<IOUState>> query) {
+        // Warm up hibernate and the JIT before measuring.
+        database.transaction(tx -> query.get());
+
+        long total = 0;
+        long matches = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            matches = database.transaction(tx -> query.get()).getTotalStatesAvailable();
+            total += System.nanoTime() - start;
+        }
+        System.out.printf("%,10d IOUs | by %-11s | %,8d matches | %8.2f ms/query%n",
+                size, label, matches, total / (ITERATIONS * 1_000_000.0));
+    }
+}
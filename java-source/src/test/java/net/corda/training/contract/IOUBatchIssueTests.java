@@ -0,0 +1,70 @@
+package net.corda.training.contract;
+
+import net.corda.finance.Currencies;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.IOUState;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.TestUtils.*;
+
+/**
+ * Tests for issuing several IOUs under a single Issue command.
+ */
+public class IOUBatchIssueTests {
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.training", "net.corda.finance.contracts")
+    );
+
+    @Test
+    public void manyIOUsCanBeIssuedInOneTransaction() {
+        IOUState toBob = new IOUState(Currencies.POUNDS(1), BOB.getParty(), ALICE.getParty());
+        IOUState toCharlie = new IOUState(Currencies.POUNDS(2), CHARLIE.getParty(), ALICE.getParty());
+        IOUState toBobAgain = new IOUState(Currencies.DOLLARS(3), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, toBob);
+                tx.output(IOUContract.IOU_CONTRACT_ID, toCharlie);
+                tx.output(IOUContract.IOU_CONTRACT_ID, toBobAgain);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void everyLenderMustSignTheBatch() {
+        IOUState toBob = new IOUState(Currencies.POUNDS(1), BOB.getParty(), ALICE.getParty());
+        IOUState toCharlie = new IOUState(Currencies.POUNDS(2), CHARLIE.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, toBob);
+                tx.output(IOUContract.IOU_CONTRACT_ID, toCharlie);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.failsWith("Both lender and borrower together only may sign IOU issue transaction.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void everyIOUInTheBatchIsChecked() {
+        IOUState toBob = new IOUState(Currencies.POUNDS(1), BOB.getParty(), ALICE.getParty());
+        IOUState zero = new IOUState(Currencies.POUNDS(0), CHARLIE.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, toBob);
+                tx.output(IOUContract.IOU_CONTRACT_ID, zero);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.failsWith("A newly issued IOU must have a positive amount.");
+            });
+            return null;
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package net.corda.training.contract;
+
+import net.corda.finance.Currencies;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.CreditLimitState;
+import net.corda.training.state.IOUState;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.TestUtils.*;
+
+/**
+ * Tests for issuing IOUs against a lender's [CreditLimitState], held as a reference input.
+ */
+public class IOUCreditLimitTests {
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.training", "net.corda.finance.contracts")
+    );
+
+    @Test
+    public void issuanceWithinTheCreditLimitVerifies() {
+        CreditLimitState limit = new CreditLimitState(BOB.getParty(), ALICE.getParty(), Currencies.POUNDS(10));
+        IOUState first = new IOUState(Currencies.POUNDS(4), BOB.getParty(), ALICE.getParty());
+        IOUState second = new IOUState(Currencies.POUNDS(6), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.reference(CreditLimitContract.CREDIT_LIMIT_CONTRACT_ID, limit);
+                tx.output(IOUContract.IOU_CONTRACT_ID, first);
+                tx.output(IOUContract.IOU_CONTRACT_ID, second);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void issuanceMustNotExceedTheCreditLimit() {
+        CreditLimitState limit = new CreditLimitState(BOB.getParty(), ALICE.getParty(), Currencies.POUNDS(10));
+        IOUState first = new IOUState(Currencies.POUNDS(4), BOB.getParty(), ALICE.getParty());
+        IOUState second = new IOUState(Currencies.POUNDS(7), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.reference(CreditLimitContract.CREDIT_LIMIT_CONTRACT_ID, limit);
+                tx.output(IOUContract.IOU_CONTRACT_ID, first);
+                tx.output(IOUContract.IOU_CONTRACT_ID, second);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.failsWith("The IOUs issued must not exceed the credit limit.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void limitsForOtherCurrenciesDoNotApply() {
+        CreditLimitState limit = new CreditLimitState(BOB.getParty(), ALICE.getParty(), Currencies.DOLLARS(1));
+        IOUState iou = new IOUState(Currencies.POUNDS(50), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.reference(CreditLimitContract.CREDIT_LIMIT_CONTRACT_ID, limit);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+}
@@ -0,0 +1,150 @@
+package net.corda.training.contract;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.PartyAndReference;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.Currencies;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.IOUState;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Currency;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.TestUtils.*;
+
+/**
+ * Tests for transferring and settling several IOUs in one transaction, under one or several IOU commands.
+ */
+public class IOUMultiGroupTests {
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.training", "net.corda.finance.contracts")
+    );
+
+    private Cash.State createCashState(AbstractParty owner, Amount<Currency> amount) {
+        return new Cash.State(new PartyAndReference(owner, new OpaqueBytes(new byte[1])), amount, owner);
+    }
+
+    @Test
+    public void manyIOUsCanBeTransferredInOneTransaction() {
+        IOUState first = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState second = new IOUState(Currencies.DOLLARS(5), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, first.withNewLender(CHARLIE.getParty()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, second.withNewLender(CHARLIE.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Transfer());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void oneCashPaymentCanSettleSeveralIOUs() {
+        IOUState first = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState second = new IOUState(Currencies.POUNDS(6), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, first.pay(Currencies.POUNDS(5)));
+                tx.input(Cash.PROGRAM_ID, createCashState(BOB.getParty(), Currencies.POUNDS(11)));
+                tx.output(Cash.PROGRAM_ID, createCashState(ALICE.getParty(), Currencies.POUNDS(11)));
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void cashMustCoverEverySettledIOU() {
+        IOUState first = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState second = new IOUState(Currencies.POUNDS(6), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, first.pay(Currencies.POUNDS(5)));
+                tx.input(Cash.PROGRAM_ID, createCashState(BOB.getParty(), Currencies.POUNDS(10)));
+                tx.output(Cash.PROGRAM_ID, createCashState(ALICE.getParty(), Currencies.POUNDS(10)));
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                return tx.failsWith("The paid property must increase by the amount of cash paid to the lender.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void oneCashPaymentCanSettleHundredsOfIOUs() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                for (int i = 0; i < 200; i++) {
+                    IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+                    tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                    // Pay off every other IOU in full, and half of the rest.
+                    if (i % 2 == 1) tx.output(IOUContract.IOU_CONTRACT_ID, iou.pay(Currencies.POUNDS(5)));
+                }
+                tx.input(Cash.PROGRAM_ID, createCashState(BOB.getParty(), Currencies.POUNDS(1500)));
+                tx.output(Cash.PROGRAM_ID, createCashState(ALICE.getParty(), Currencies.POUNDS(1500)));
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void issueTransferAndSettleCanShareATransaction() {
+        IOUState issued = new IOUState(Currencies.POUNDS(3), ALICE.getParty(), BOB.getParty());
+        IOUState transferred = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState settled = new IOUState(Currencies.POUNDS(6), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, issued);
+                tx.input(IOUContract.IOU_CONTRACT_ID, transferred);
+                tx.output(IOUContract.IOU_CONTRACT_ID, transferred.withNewLender(CHARLIE.getParty()));
+                tx.input(IOUContract.IOU_CONTRACT_ID, settled);
+                tx.input(Cash.PROGRAM_ID, createCashState(BOB.getParty(), Currencies.POUNDS(6)));
+                tx.output(Cash.PROGRAM_ID, createCashState(ALICE.getParty(), Currencies.POUNDS(6)));
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Transfer());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void everyIOUNeedsAMatchingCommand() {
+        IOUState issued = new IOUState(Currencies.POUNDS(3), ALICE.getParty(), BOB.getParty());
+        IOUState transferred = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, issued);
+                tx.input(IOUContract.IOU_CONTRACT_ID, transferred);
+                tx.output(IOUContract.IOU_CONTRACT_ID, transferred.withNewLender(CHARLIE.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                return tx.failsWith("Each IOU must be covered by a matching IOU command.");
+            });
+            return null;
+        });
+    }
+}
@@ -0,0 +1,134 @@
+package net.corda.training.contract;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.PartyAndReference;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.Currencies;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.IOUState;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Currency;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.TestUtils.*;
+
+/**
+ * Tests for netting IOUs that two parties owe each other against one another.
+ */
+public class IOUNetTests {
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.training", "net.corda.finance.contracts")
+    );
+
+    private Cash.State createCashState(AbstractParty owner, Amount<Currency> amount) {
+        return new Cash.State(new PartyAndReference(owner, new OpaqueBytes(new byte[1])), amount, owner);
+    }
+
+    @Test
+    public void offsettingIOUsCanBeNetted() {
+        IOUState bobOwes = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState aliceOwes = new IOUState(Currencies.POUNDS(4), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwes);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwes);
+                tx.output(IOUContract.IOU_CONTRACT_ID, bobOwes.pay(Currencies.POUNDS(4)));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void nettedAmountsMustOffsetExactly() {
+        IOUState bobOwes = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState aliceOwes = new IOUState(Currencies.POUNDS(4), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwes);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwes);
+                tx.output(IOUContract.IOU_CONTRACT_ID, bobOwes.pay(Currencies.POUNDS(5)));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("Amounts netted must offset each other exactly.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void differentCurrenciesCannotBeNetted() {
+        IOUState bobOwes = new IOUState(Currencies.POUNDS(4), ALICE.getParty(), BOB.getParty());
+        IOUState aliceOwes = new IOUState(Currencies.DOLLARS(4), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwes);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwes);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("Amounts netted must offset each other exactly.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void nettingMustNotMoveCash() {
+        IOUState bobOwes = new IOUState(Currencies.POUNDS(4), ALICE.getParty(), BOB.getParty());
+        IOUState aliceOwes = new IOUState(Currencies.POUNDS(4), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwes);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwes);
+                tx.input(Cash.PROGRAM_ID, createCashState(BOB.getParty(), Currencies.POUNDS(4)));
+                tx.output(Cash.PROGRAM_ID, createCashState(ALICE.getParty(), Currencies.POUNDS(4)));
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("An IOU netting transaction should only consume and create IOU states.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void nettingMustBeSignedByBothParties() {
+        IOUState bobOwes = new IOUState(Currencies.POUNDS(4), ALICE.getParty(), BOB.getParty());
+        IOUState aliceOwes = new IOUState(Currencies.POUNDS(4), BOB.getParty(), ALICE.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwes);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwes);
+                tx.command(ALICE.getPublicKey(), new IOUContract.Commands.Net());
+                return tx.failsWith("The lenders and borrowers only must sign an IOU netting transaction.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void netMustBeTheOnlyIOUCommand() {
+        IOUState bobOwes = new IOUState(Currencies.POUNDS(4), ALICE.getParty(), BOB.getParty());
+        IOUState aliceOwes = new IOUState(Currencies.POUNDS(4), BOB.getParty(), ALICE.getParty());
+        IOUState issued = new IOUState(Currencies.POUNDS(3), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwes);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwes);
+                tx.output(IOUContract.IOU_CONTRACT_ID, issued);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.failsWith("A net must be the only IOU command in a transaction.");
+            });
+            return null;
+        });
+    }
+}
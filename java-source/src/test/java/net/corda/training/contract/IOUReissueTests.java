@@ -0,0 +1,198 @@
+package net.corda.training.contract;
+
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.CreditLimitState;
+import net.corda.training.state.IOUState;
+import net.corda.training.state.ReissueLockState;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.TestUtils.*;
+
+/**
+ * Tests for the steps of an IOU re-issue: retiring the current state, recreating it locked with no inputs, and
+ * unlocking the recreation.
+ */
+public class IOUReissueTests {
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.training", "net.corda.finance.contracts")
+    );
+
+    private static final StateRef SOME_REF = new StateRef(SecureHash.getZeroHash(), 0);
+
+    @Test
+    public void partlyPaidIOUCanBeRetiredAndRecreated() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty()).pay(Currencies.POUNDS(4));
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, "iou", iou);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                return tx.verifies();
+            });
+            StateRef retired = l.retrieveOutputStateAndRef(IOUState.class, "iou").getRef();
+            l.transaction(tx -> {
+                tx.input("iou");
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(retired));
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, lock(retired));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(retired));
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void recreatedIOUMustBeLocked() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("A recreated IOU must be locked until the IOU it replaces is retired.");
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, lock(new StateRef(SecureHash.getAllOnesHash(), 0)));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("A recreated IOU must be locked in place of the IOU its command names.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void recreationCannotBeUnlockedWithoutItsRetirement() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, "locked", 1, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, "lock", 0, lock(SOME_REF));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input("locked");
+                tx.input("lock");
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.command(ALICE.getPublicKey(), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("An IOU may only be unlocked once the IOU it replaces is notarised as retired.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void lockedIOUCannotBeSpentAnyOtherWay() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, "locked", 1, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, "lock", 0, lock(SOME_REF));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.verifies();
+            });
+            l.transaction(tx -> {
+                tx.input("locked");
+                tx.input("lock");
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou.withNewLender(CHARLIE.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Transfer());
+                return tx.failsWith("Re-issue locks may only be created or consumed by an IOU re-issue.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void retirementMustConsumeTheIOUItNames() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("A retirement must consume the IOU its command names.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissueMustBeSignedByLenderAndBorrower() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, lock(SOME_REF));
+                tx.command(BOB.getPublicKey(), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("Both lender and borrower together only must sign IOU re-issue transaction.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissueCannotChangeAnIOU() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou.pay(Currencies.POUNDS(5)));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("A re-issue either retires, recreates or unlocks each IOU.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissueCoversASingleIOU() {
+        IOUState first = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState second = new IOUState(Currencies.POUNDS(5), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, first);
+                tx.output(IOUContract.IOU_CONTRACT_ID, second);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("An IOU re-issue must retire, recreate or unlock a single IOU.");
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void recreatedIOUMustNotExceedTheCreditLimit() {
+        CreditLimitState limit = new CreditLimitState(ALICE.getParty(), BOB.getParty(), Currencies.POUNDS(5));
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.reference(CreditLimitContract.CREDIT_LIMIT_CONTRACT_ID, limit);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, lock(SOME_REF));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Reissue(SOME_REF));
+                return tx.failsWith("The IOUs issued must not exceed the credit limit.");
+            });
+            return null;
+        });
+    }
+
+    private static ReissueLockState lock(StateRef retired) {
+        return new ReissueLockState(retired, ALICE.getParty(), BOB.getParty());
+    }
+}
@@ -0,0 +1,133 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.Currencies;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.flows.CashPaymentFlow;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static net.corda.finance.workflows.GetBalances.getCashBalance;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that compacting cash issued by another node never leaves the owner with more cash than it started with.
+ */
+public class CashCompactionFlowTests {
+    private MockNetwork mockNetwork;
+    private StartedMockNode owner, issuer;
+
+    @Before
+    public void setup() throws Exception {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.training"),
+                        TestCordapp.findCordapp("net.corda.finance.contracts"),
+                        TestCordapp.findCordapp("net.corda.finance.schemas")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        owner = mockNetwork.createNode(new MockNodeParameters());
+        issuer = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+
+        // The issuer issues itself cash and pays it to the owner, so the owner holds cash it did not issue.
+        run(issuer.startFlow(new SelfIssueCashFlow(Currencies.POUNDS(100))));
+        run(issuer.startFlow(new CashPaymentFlow(Currencies.POUNDS(100), party(owner), false)));
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void compactionReplacesTheCashWithAnIdenticalState() throws Exception {
+        StateAndRef<Cash.State> before = ownerCash(Vault.StateStatus.UNCONSUMED).get(0);
+
+        CashCompactionFlow.Report report = run(owner.startFlow(new CashCompactionFlow.InitiatorFlow(10, 1)));
+
+        assertEquals(1, report.compacted);
+        assertEquals(1, report.deepestAfter);
+        List<StateAndRef<Cash.State>> after = ownerCash(Vault.StateStatus.UNCONSUMED);
+        assertEquals(1, after.size());
+        assertEquals(before.getState().getData().getAmount(), after.get(0).getState().getData().getAmount());
+        assertEquals(Currencies.POUNDS(100), balance(owner));
+    }
+
+    @Test
+    public void ownerStoppingAfterTheReissueIsSignedCannotKeepTheOldCash() throws Exception {
+        StateAndRef<Cash.State> before = ownerCash(Vault.StateStatus.UNCONSUMED).get(0);
+
+        StopBeforeReissue flow = new StopBeforeReissue();
+        CordaFuture<CashCompactionFlow.Report> future = owner.startFlow(flow);
+        mockNetwork.runNetwork();
+        future.get();
+
+        // By the time the issuer signed the re-issue, the old cash had already been exited and notarised.
+        assertEquals(Collections.singletonList(before.getRef()), refs(ownerCash(Vault.StateStatus.CONSUMED)));
+        assertEquals(Currencies.POUNDS(0), balance(owner));
+
+        // Recording the signed re-issue on its own restores the cash, but only once.
+        owner.transaction(() -> {
+            owner.getServices().recordTransactions(Collections.singletonList(flow.signedReissue));
+            return null;
+        });
+        assertEquals(Currencies.POUNDS(100), balance(owner));
+    }
+
+    /** An owner that keeps the fully signed re-issue to itself instead of finalising it with the issuer. */
+    private static class StopBeforeReissue extends CashCompactionFlow.InitiatorFlow {
+        private SignedTransaction signedReissue;
+
+        StopBeforeReissue() {
+            super(1, 1);
+        }
+
+        @Suspendable
+        @Override
+        protected void finaliseReissue(SignedTransaction reissued, List<FlowSession> sessions) throws FlowException {
+            signedReissue = reissued;
+        }
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private List<StateAndRef<Cash.State>> ownerCash(Vault.StateStatus status) {
+        return owner.transaction(() -> owner.getServices().getVaultService()
+                .queryBy(Cash.State.class, new QueryCriteria.VaultQueryCriteria(status)).getStates());
+    }
+
+    private static List<StateRef> refs(List<StateAndRef<Cash.State>> states) {
+        return states.stream().map(StateAndRef::getRef).collect(Collectors.toList());
+    }
+
+    private static Amount<Currency> balance(StartedMockNode node) {
+        return node.transaction(() -> getCashBalance(node.getServices(), Currency.getInstance("GBP")));
+    }
+}
@@ -0,0 +1,82 @@
+package net.corda.training.flow;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.*;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that a fanned-out issuance gives each lender its own transaction, holding only that lender's IOUs.
+ */
+public class IOUFanOutIssueFlowTests {
+    private MockNetwork mockNetwork;
+    private StartedMockNode borrower, firstLender, secondLender;
+
+    @Before
+    public void setup() {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(TestCordapp.findCordapp("net.corda.training"))
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        borrower = mockNetwork.createNode(new MockNodeParameters());
+        firstLender = mockNetwork.createNode(new MockNodeParameters());
+        secondLender = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void eachLenderSignsAndRecordsOnlyItsOwnIOUs() throws Exception {
+        List<IOUState> firstLenders = Arrays.asList(iou(firstLender, 10), iou(firstLender, 20));
+        List<IOUState> secondLenders = Collections.singletonList(iou(secondLender, 30));
+        List<IOUState> all = new ArrayList<>(firstLenders);
+        all.addAll(secondLenders);
+
+        List<SignedTransaction> finalised = run(borrower.startFlow(new IOUFanOutIssueFlow.InitiatorFlow(all)));
+
+        assertEquals(2, finalised.size());
+        assertEquals(firstLenders, finalised.get(0).getTx().outputsOfType(IOUState.class));
+        assertEquals(secondLenders, finalised.get(1).getTx().outputsOfType(IOUState.class));
+        for (SignedTransaction stx : finalised) stx.verifyRequiredSignatures();
+
+        assertEquals(new HashSet<>(firstLenders), unconsumed(firstLender));
+        assertEquals(new HashSet<>(secondLenders), unconsumed(secondLender));
+        assertEquals(new HashSet<>(all), unconsumed(borrower));
+    }
+
+    private IOUState iou(StartedMockNode lender, int pounds) {
+        return new IOUState(Currencies.POUNDS(pounds), party(lender), party(borrower));
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static Set<IOUState> unconsumed(StartedMockNode node) {
+        Set<IOUState> ious = new HashSet<>();
+        for (StateAndRef<IOUState> state : node.transaction(() ->
+                node.getServices().getVaultService().queryBy(IOUState.class).getStates())) {
+            ious.add(state.getState().getData());
+        }
+        return ious;
+    }
+}
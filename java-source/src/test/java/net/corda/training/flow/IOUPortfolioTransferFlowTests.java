@@ -0,0 +1,176 @@
+package net.corda.training.flow;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.AbstractStateReplacementFlow;
+import net.corda.core.flows.NotaryChangeFlow;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.WireTransaction;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.*;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a portfolio transfer moves every IOU it is given to the new lender, in chunks of at most its chunk size
+ * and with one transaction per notary in each chunk, and that its progress names the chunk being transferred.
+ */
+public class IOUPortfolioTransferFlowTests {
+    private MockNetwork mockNetwork;
+    private StartedMockNode lender, borrower, newLender;
+
+    @Before
+    public void setup() {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(TestCordapp.findCordapp("net.corda.training"))
+        ).withNotarySpecs(Arrays.asList(
+                new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")),
+                new MockNetworkNotarySpec(new CordaX500Name("Notary", "Zurich", "CH")))));
+        lender = mockNetwork.createNode(new MockNodeParameters());
+        borrower = mockNetwork.createNode(new MockNodeParameters());
+        newLender = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void bookIsTransferredInChunksOfAtMostTheChunkSize() throws Exception {
+        List<UniqueIdentifier> book = issue(5);
+
+        List<SecureHash> txIds = run(lender.startFlow(new IOUPortfolioTransferFlow.InitiatorFlow(book, party(newLender), 2)));
+
+        assertEquals(3, txIds.size());
+        assertEquals(Arrays.asList(2, 2, 1), inputCounts(txIds));
+        assertTransferred(book);
+    }
+
+    @Test
+    public void chunkSpanningTwoNotariesIsSplitBetweenThem() throws Exception {
+        List<UniqueIdentifier> book = issue(3);
+        Party otherNotary = moveToOtherNotary(book.get(1));
+
+        List<SecureHash> txIds = run(lender.startFlow(new IOUPortfolioTransferFlow.InitiatorFlow(book, party(newLender), 3)));
+
+        assertEquals(2, txIds.size());
+        Set<Party> notaries = new HashSet<>();
+        for (SecureHash txId : txIds) notaries.add(transaction(txId).getNotary());
+        assertEquals(2, notaries.size());
+        assertTrue(notaries.contains(otherNotary));
+        assertTransferred(book);
+    }
+
+    @Test
+    public void criteriaSelectOnlyTheIOUsTheyMatch() throws Exception {
+        List<UniqueIdentifier> issued = issue(4);
+        List<UniqueIdentifier> book = issued.subList(0, 3);
+        List<UUID> ids = new ArrayList<>();
+        for (UniqueIdentifier linearId : book) ids.add(linearId.getId());
+
+        List<SecureHash> txIds = run(lender.startFlow(new IOUPortfolioTransferFlow.InitiatorFlow(
+                new QueryCriteria.LinearStateQueryCriteria(null, ids), party(newLender), 2)));
+
+        assertEquals(2, txIds.size());
+        assertTransferred(book);
+        assertEquals(party(lender), iou(lender, issued.get(3)).lender);
+    }
+
+    @Test
+    public void progressNamesEachChunk() throws Exception {
+        List<UniqueIdentifier> book = issue(3);
+        IOUPortfolioTransferFlow.InitiatorFlow flow = new IOUPortfolioTransferFlow.InitiatorFlow(book, party(newLender), 2);
+        List<String> steps = new ArrayList<>();
+        flow.getProgressTracker().getChanges().subscribe(change -> {
+            if (change instanceof ProgressTracker.Change.Position) {
+                steps.add(((ProgressTracker.Change.Position) change).getNewStep().getLabel());
+            }
+        });
+
+        run(lender.startFlow(flow));
+
+        for (String label : Arrays.asList("chunk 1 of 2", "chunk 2 of 2")) {
+            for (String step : Arrays.asList("Building ", "Collecting the signatures for ", "Finalising ")) {
+                assertTrue(steps.contains(step + label + "."));
+            }
+        }
+        assertTrue(steps.indexOf("Finalising chunk 1 of 2.") < steps.indexOf("Building chunk 2 of 2."));
+    }
+
+    private List<UniqueIdentifier> issue(int count) throws Exception {
+        List<UniqueIdentifier> linearIds = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            IOUState iou = new IOUState(Currencies.POUNDS(i), party(lender), party(borrower));
+            run(lender.startFlow(new IOUIssueFlow.InitiatorFlow(iou)));
+            linearIds.add(iou.getLinearId());
+        }
+        return linearIds;
+    }
+
+    /** Moves the IOU to whichever notary it isn't on yet, and returns that notary. */
+    private Party moveToOtherNotary(UniqueIdentifier linearId) throws Exception {
+        StateAndRef<IOUState> current = stateAndRef(lender, linearId);
+        Party otherNotary = null;
+        for (StartedMockNode notary : mockNetwork.getNotaryNodes()) {
+            Party identity = party(notary);
+            if (!identity.equals(current.getState().getNotary())) otherNotary = identity;
+        }
+        run(lender.startFlow(new NotaryChangeFlow<>(current, otherNotary,
+                AbstractStateReplacementFlow.Instigator.Companion.tracker())));
+        return otherNotary;
+    }
+
+    private void assertTransferred(List<UniqueIdentifier> book) {
+        for (UniqueIdentifier linearId : book) {
+            for (StartedMockNode node : Arrays.asList(borrower, newLender)) {
+                assertEquals(party(newLender), iou(node, linearId).lender);
+            }
+        }
+    }
+
+    private List<Integer> inputCounts(List<SecureHash> txIds) {
+        List<Integer> counts = new ArrayList<>();
+        for (SecureHash txId : txIds) counts.add(transaction(txId).getInputs().size());
+        return counts;
+    }
+
+    private WireTransaction transaction(SecureHash txId) {
+        SignedTransaction stx = newLender.transaction(() ->
+                newLender.getServices().getValidatedTransactions().getTransaction(txId));
+        return stx.getTx();
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static IOUState iou(StartedMockNode node, UniqueIdentifier linearId) {
+        return stateAndRef(node, linearId).getState().getData();
+    }
+
+    private static StateAndRef<IOUState> stateAndRef(StartedMockNode node, UniqueIdentifier linearId) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(IOUState.class,
+                new QueryCriteria.LinearStateQueryCriteria(null, Collections.singletonList(linearId.getId())))
+                .getStates().get(0));
+    }
+}
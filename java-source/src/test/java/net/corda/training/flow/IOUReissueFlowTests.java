@@ -0,0 +1,160 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FinalityFlow;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.*;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that an IOU re-issue leaves exactly one IOU behind, however far the initiator gets before it stops.
+ */
+public class IOUReissueFlowTests {
+    private MockNetwork mockNetwork;
+    private StartedMockNode lender, borrower;
+    private StateAndRef<IOUState> issued;
+
+    @Before
+    public void setup() throws Exception {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(TestCordapp.findCordapp("net.corda.training"))
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        lender = mockNetwork.createNode(new MockNodeParameters());
+        borrower = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+
+        IOUState iou = new IOUState(Currencies.POUNDS(10), party(lender), party(borrower));
+        run(lender.startFlow(new IOUIssueFlow.InitiatorFlow(iou)));
+        issued = ious(lender, Vault.StateStatus.UNCONSUMED).get(0);
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void reissueRecreatesTheIOUWithNothingBeforeIt() throws Exception {
+        SignedTransaction unlocked = run(lender.startFlow(new IOUReissueFlow.InitiatorFlow(issued.getState().getData().getLinearId())));
+
+        // The unlocked IOU's only history is the recreation, which has no inputs.
+        for (StateRef input : unlocked.getTx().getInputs()) {
+            assertTrue(transaction(borrower, input.getTxhash()).getTx().getInputs().isEmpty());
+        }
+        for (StartedMockNode node : Arrays.asList(lender, borrower)) {
+            assertOnlyTheRecreatedIOU(node);
+        }
+    }
+
+    @Test
+    public void lenderStoppingBeforeFinalityCannotKeepTheOldIOU() throws Exception {
+        // The lender holds both halves fully signed, but finalises neither.
+        StopBeforeFinality flow = new StopBeforeFinality(issued);
+        run(lender.startFlow(flow));
+
+        // The borrower has notarised the retirement and unlocked the recreation itself.
+        assertOnlyTheRecreatedIOU(borrower);
+
+        // The lender still holds the old IOU and its signed recreation, but the notary knows the old IOU is retired
+        // and the recreation cannot be spent without its lock.
+        assertEquals(issued, ious(lender, Vault.StateStatus.UNCONSUMED).get(0));
+        assertNotNull(flow.recreated.getTx().getOutputs().get(0).getEncumbrance());
+        StartedMockNode newLender = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+        try {
+            run(lender.startFlow(new IOUTransferFlow.InitiatorFlow(issued.getState().getData().getLinearId(), party(newLender))));
+            fail("The retired IOU must not be spent again.");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void borrowerStoppingAfterTheRetirementCannotLoseTheDebt() throws Exception {
+        // The borrower retires the IOU, but never unlocks the recreation with the lender.
+        run(borrower.startFlow(new StopAfterRetirement(issued)));
+
+        // The lender has unlocked the recreation itself, so it is still owed.
+        assertOnlyTheRecreatedIOU(lender);
+    }
+
+    private void assertOnlyTheRecreatedIOU(StartedMockNode node) {
+        List<StateRef> consumed = new ArrayList<>();
+        for (StateAndRef<IOUState> state : ious(node, Vault.StateStatus.CONSUMED)) consumed.add(state.getRef());
+        List<StateAndRef<IOUState>> unconsumed = ious(node, Vault.StateStatus.UNCONSUMED);
+        assertTrue(consumed.contains(issued.getRef()));
+        assertEquals(1, unconsumed.size());
+        assertEquals(issued.getState().getData(), unconsumed.get(0).getState().getData());
+        assertNull(unconsumed.get(0).getState().getEncumbrance());
+    }
+
+    /** An initiator that collects both halves of the re-issue and then stops. */
+    private static class StopBeforeFinality extends IOUReissueFlow.InitiatorFlow {
+        private SignedTransaction recreated;
+
+        StopBeforeFinality(StateAndRef<IOUState> issued) {
+            super(issued.getState().getData().getLinearId());
+        }
+
+        @Suspendable
+        @Override
+        protected SignedTransaction finalise(SignedTransaction retired, SignedTransaction recreated, List<FlowSession> sessions) {
+            this.recreated = recreated;
+            return recreated;
+        }
+    }
+
+    /** An initiator that finalises the retirement and then stops. */
+    private static class StopAfterRetirement extends IOUReissueFlow.InitiatorFlow {
+        StopAfterRetirement(StateAndRef<IOUState> issued) {
+            super(issued.getState().getData().getLinearId());
+        }
+
+        @Suspendable
+        @Override
+        protected SignedTransaction finalise(SignedTransaction retired, SignedTransaction recreated,
+                                             List<FlowSession> sessions) throws FlowException {
+            subFlow(new FinalityFlow(retired, sessions));
+            return recreated;
+        }
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static SignedTransaction transaction(StartedMockNode node, SecureHash txId) {
+        return node.transaction(() -> node.getServices().getValidatedTransactions().getTransaction(txId));
+    }
+
+    private static List<StateAndRef<IOUState>> ious(StartedMockNode node, Vault.StateStatus status) {
+        return node.transaction(() -> node.getServices().getVaultService()
+                .queryBy(IOUState.class, new QueryCriteria.VaultQueryCriteria(status)).getStates());
+    }
+}
@@ -1,16 +1,22 @@
 package net.corda.training.flow;
 
+import co.paralleluniverse.fibers.Suspendable;
 import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.CommandAndState;
 import net.corda.core.contracts.CommandWithParties;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.CollectSignaturesFlow;
+import net.corda.core.flows.FlowException;
 import net.corda.core.flows.FlowSession;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.finance.schemas.CashSchemaV1;
 import net.corda.core.transactions.LedgerTransaction;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
 import net.corda.finance.Currencies;
 import net.corda.finance.contracts.asset.Cash;
 import net.corda.testing.node.*;
@@ -26,6 +32,7 @@ import org.junit.rules.ExpectedException;
 import javax.annotation.Signed;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Currency;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -33,6 +40,8 @@ import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static net.corda.testing.driver.Driver.driver;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.*;
 import static net.corda.testing.node.NodeTestUtils.ledger;
 import static net.corda.training.TestUtils.ALICE;
 import static net.corda.training.TestUtils.BOB;
@@ -277,4 +286,97 @@ public class IOUSettleFlowTests{
 //        }
 //    }
 
-}
\ No newline at end of file
+
+    @Test
+    public void settlementsResolveTheCurrentIOUAndPayTheLender() throws Exception {
+        StartedMockNode lender = b;
+        IOUState iou = new IOUState(Currencies.POUNDS(10), party(lender), party(a));
+        issueIOU(iou);
+        issueCash(Currencies.POUNDS(10));
+
+        run(a.startFlow(new IOUSettleFlow.InitiatorFlow(iou.getLinearId(), Currencies.POUNDS(4))));
+        assertEquals(Currencies.POUNDS(4), unconsumed(lender, IOUState.class).get(0).getState().getData().paid);
+
+        // The second settlement spends the IOU the first one produced, so it must resolve the updated index entry.
+        run(a.startFlow(new IOUSettleFlow.InitiatorFlow(iou.getLinearId(), Currencies.POUNDS(6))));
+        for (StartedMockNode node : Arrays.asList(a, lender)) {
+            assertTrue(unconsumed(node, IOUState.class).isEmpty());
+        }
+        long received = 0;
+        for (StateAndRef<Cash.State> cash : unconsumed(lender, Cash.State.class)) {
+            received += cash.getState().getData().getAmount().getQuantity();
+        }
+        assertEquals(Currencies.POUNDS(10).getQuantity(), received);
+    }
+
+    @Test
+    public void settlementInAnotherCurrencyIsRejected() throws Exception {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), party(b), party(a));
+        issueIOU(iou);
+        issueCash(Currencies.DOLLARS(10));
+
+        exception.expectCause(instanceOf(IllegalArgumentException.class));
+        run(a.startFlow(new IOUSettleFlow.InitiatorFlow(iou.getLinearId(), Currencies.DOLLARS(5))));
+    }
+
+    @Test
+    public void lenderRefusesToBePaidWithItsOwnCash() throws Exception {
+        StartedMockNode lender = b;
+        IOUState iou = new IOUState(Currencies.POUNDS(10), party(lender), party(a));
+        issueIOU(iou);
+        run(lender.startFlow(new SelfIssueCashFlow(Currencies.POUNDS(10))));
+        StateAndRef<IOUState> issued = unconsumed(a, IOUState.class).get(0);
+        StateAndRef<Cash.State> lendersCash = unconsumed(lender, Cash.State.class).get(0);
+
+        try {
+            run(a.startFlow(new SettleWithLendersCash(issued, lendersCash)));
+            fail("The lender must not sign away its own cash.");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+        assertEquals(issued, unconsumed(lender, IOUState.class).get(0));
+        assertEquals(lendersCash, unconsumed(lender, Cash.State.class).get(0));
+    }
+
+    /**
+     * A borrower that proposes to settle an IOU by moving the lender's own cash back to the lender. The contract
+     * accepts it, since the lender is paid, so only the lender's own checks stand in the way.
+     */
+    static class SettleWithLendersCash extends IOUSettleFlow.InitiatorFlow {
+        private final StateAndRef<IOUState> iou;
+        private final StateAndRef<Cash.State> lendersCash;
+
+        SettleWithLendersCash(StateAndRef<IOUState> iou, StateAndRef<Cash.State> lendersCash) {
+            super(iou.getState().getData().getLinearId(), iou.getState().getData().amount);
+            this.iou = iou;
+            this.lendersCash = lendersCash;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            IOUState input = iou.getState().getData();
+            TransactionBuilder builder = new TransactionBuilder(iou.getState().getNotary())
+                    .addInputState(iou)
+                    .addInputState(lendersCash)
+                    .addOutputState(lendersCash.getState().getData(), Cash.PROGRAM_ID)
+                    .addCommand(new IOUContract.Commands.Settle(), input.lender.getOwningKey(), input.borrower.getOwningKey())
+                    .addCommand(new Cash.Commands.Move(), input.lender.getOwningKey());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+            return subFlow(new CollectSignaturesFlow(ptx, Collections.singletonList(initiateFlow(input.lender))));
+        }
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static <T extends ContractState> List<StateAndRef<T>> unconsumed(StartedMockNode node, Class<T> type) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(type).getStates());
+    }
+}
@@ -0,0 +1,142 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.CollectSignaturesFlow;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.finance.Currencies;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.testing.node.*;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a borrower settles many IOUs with one cash payment per lender, and that a lender refuses a settlement
+ * that pays it with its own cash.
+ */
+public class IOUSettleManyFlowTests {
+    private MockNetwork mockNetwork;
+    private StartedMockNode borrower, lender, otherLender;
+
+    @Before
+    public void setup() {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(Arrays.asList(
+                TestCordapp.findCordapp("net.corda.training"),
+                TestCordapp.findCordapp("net.corda.finance.schemas")
+        )).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        borrower = mockNetwork.createNode(new MockNodeParameters());
+        lender = mockNetwork.createNode(new MockNodeParameters());
+        otherLender = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void manyIOUsAreSettledWithOnePaymentPerLender() throws Exception {
+        IOUState first = issue(lender, 10);
+        IOUState second = issue(lender, 20);
+        IOUState third = issue(otherLender, 5);
+        run(borrower.startFlow(new SelfIssueCashFlow(Currencies.POUNDS(50))));
+
+        SignedTransaction stx = run(borrower.startFlow(new IOUSettleManyFlow.InitiatorFlow(ImmutableMap.of(
+                first.getLinearId(), Currencies.POUNDS(10),
+                second.getLinearId(), Currencies.POUNDS(5),
+                third.getLinearId(), Currencies.POUNDS(5)))));
+
+        Map<Party, Long> paid = new HashMap<>();
+        for (Cash.State cash : stx.getTx().outputsOfType(Cash.State.class)) {
+            paid.merge((Party) cash.getOwner(), cash.getAmount().getQuantity(), Long::sum);
+        }
+        assertEquals(Long.valueOf(Currencies.POUNDS(15).getQuantity()), paid.get(party(lender)));
+        assertEquals(Long.valueOf(Currencies.POUNDS(5).getQuantity()), paid.get(party(otherLender)));
+
+        List<StateAndRef<IOUState>> remaining = unconsumed(borrower, IOUState.class);
+        assertEquals(1, remaining.size());
+        assertEquals(second.pay(Currencies.POUNDS(5)), remaining.get(0).getState().getData());
+        assertTrue(unconsumed(otherLender, IOUState.class).isEmpty());
+    }
+
+    @Test
+    public void lenderRefusesToBePaidWithItsOwnCash() throws Exception {
+        issue(lender, 10);
+        run(lender.startFlow(new SelfIssueCashFlow(Currencies.POUNDS(10))));
+        StateAndRef<IOUState> issued = unconsumed(borrower, IOUState.class).get(0);
+        StateAndRef<Cash.State> lendersCash = unconsumed(lender, Cash.State.class).get(0);
+
+        try {
+            run(borrower.startFlow(new SettleWithLendersCash(issued, lendersCash)));
+            fail("The lender must not sign away its own cash.");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+        assertEquals(issued, unconsumed(lender, IOUState.class).get(0));
+        assertEquals(lendersCash, unconsumed(lender, Cash.State.class).get(0));
+    }
+
+    /**
+     * A borrower that proposes to settle an IOU by moving the lender's own cash back to the lender. The contract
+     * accepts it, since the lender is paid, so only the lender's own checks stand in the way.
+     */
+    static class SettleWithLendersCash extends IOUSettleManyFlow.InitiatorFlow {
+        private final StateAndRef<IOUState> iou;
+        private final StateAndRef<Cash.State> lendersCash;
+
+        SettleWithLendersCash(StateAndRef<IOUState> iou, StateAndRef<Cash.State> lendersCash) {
+            super(ImmutableMap.of(iou.getState().getData().getLinearId(), iou.getState().getData().amount));
+            this.iou = iou;
+            this.lendersCash = lendersCash;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            IOUState input = iou.getState().getData();
+            TransactionBuilder builder = new TransactionBuilder(iou.getState().getNotary())
+                    .addInputState(iou)
+                    .addInputState(lendersCash)
+                    .addOutputState(lendersCash.getState().getData(), Cash.PROGRAM_ID)
+                    .addCommand(new IOUContract.Commands.Settle(), input.lender.getOwningKey(), input.borrower.getOwningKey())
+                    .addCommand(new Cash.Commands.Move(), input.lender.getOwningKey());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+            return subFlow(new CollectSignaturesFlow(ptx, Collections.singletonList(initiateFlow(input.lender))));
+        }
+    }
+
+    private IOUState issue(StartedMockNode lender, int pounds) throws Exception {
+        IOUState iou = new IOUState(Currencies.POUNDS(pounds), party(lender), party(borrower));
+        run(borrower.startFlow(new IOUIssueFlow.InitiatorFlow(iou)));
+        return iou;
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static <T extends ContractState> List<StateAndRef<T>> unconsumed(StartedMockNode node, Class<T> type) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(type).getStates());
+    }
+}
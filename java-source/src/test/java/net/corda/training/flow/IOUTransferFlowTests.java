@@ -1,12 +1,17 @@
 package net.corda.training.flow;
 
+import co.paralleluniverse.fibers.Suspendable;
 import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.CollectSignaturesFlow;
+import net.corda.core.flows.FlowException;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
 import net.corda.finance.Currencies;
 import net.corda.finance.contracts.asset.Cash;
 import net.corda.node.Corda;
@@ -22,9 +27,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Currency;
 import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import static org.junit.Assert.*;
+
 public class IOUTransferFlowTests {
 
     private MockNetwork mockNetwork;
@@ -209,4 +217,74 @@ public class IOUTransferFlowTests {
 //        }
 //    }
 
-}
\ No newline at end of file
+
+    @Test
+    public void transfersResolveTheCurrentIOU() throws Exception {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), party(a), party(b));
+        issueIOU(iou);
+
+        run(a.startFlow(new IOUTransferFlow.InitiatorFlow(iou.getLinearId(), party(c))));
+        // The new lender resolves the IOU it was just given, through its own index.
+        run(c.startFlow(new IOUTransferFlow.InitiatorFlow(iou.getLinearId(), party(a))));
+
+        for (StartedMockNode node : Arrays.asList(a, b)) {
+            List<StateAndRef<IOUState>> ious = unconsumed(node);
+            assertEquals(1, ious.size());
+            assertEquals(iou, ious.get(0).getState().getData());
+        }
+        assertTrue(unconsumed(c).isEmpty());
+    }
+
+    @Test
+    public void lenderRefusesATransferItDidNotInitiate() throws Exception {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), party(a), party(b));
+        issueIOU(iou);
+        StateAndRef<IOUState> issued = unconsumed(b).get(0);
+
+        try {
+            run(b.startFlow(new TransferAsBorrower(issued, party(c))));
+            fail("Only the lender can transfer an IOU.");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+        assertEquals(issued, unconsumed(a).get(0));
+    }
+
+    /** A borrower that proposes to move its own IOU to a new lender, which only the lender may do. */
+    static class TransferAsBorrower extends IOUTransferFlow.InitiatorFlow {
+        private final StateAndRef<IOUState> iou;
+        private final Party newLender;
+
+        TransferAsBorrower(StateAndRef<IOUState> iou, Party newLender) {
+            super(iou.getState().getData().getLinearId(), newLender);
+            this.iou = iou;
+            this.newLender = newLender;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            IOUState input = iou.getState().getData();
+            TransactionBuilder builder = new TransactionBuilder(iou.getState().getNotary())
+                    .addInputState(iou)
+                    .addOutputState(input.withNewLender(newLender), IOUContract.IOU_CONTRACT_ID)
+                    .addCommand(new IOUContract.Commands.Transfer(), input.lender.getOwningKey(),
+                            input.borrower.getOwningKey(), newLender.getOwningKey());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+            return subFlow(new CollectSignaturesFlow(ptx, Arrays.asList(initiateFlow(input.lender), initiateFlow(newLender))));
+        }
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static List<StateAndRef<IOUState>> unconsumed(StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(IOUState.class).getStates());
+    }
+}
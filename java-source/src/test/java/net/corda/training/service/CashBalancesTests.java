@@ -0,0 +1,93 @@
+package net.corda.training.service;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.node.services.Vault;
+import net.corda.finance.Currencies;
+import net.corda.finance.contracts.asset.Cash;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static net.corda.training.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link CashBalances} are seeded from the aggregate snapshot, follow each update, and never show half of
+ * one.
+ */
+public class CashBalancesTests {
+    private static final Currency GBP = Currency.getInstance("GBP");
+    private static final Currency USD = Currency.getInstance("USD");
+
+    @Test
+    public void balancesAreSeededFromTheAggregateSnapshot() {
+        CashBalances balances = new CashBalances();
+
+        balances.load(snapshot(1_000L, "GBP", 250L, "USD"));
+
+        assertEquals(1_000L, balances.getQuantity(GBP));
+        assertEquals(250L, balances.getQuantity(USD));
+        assertEquals(0L, balances.getQuantity(Currency.getInstance("CHF")));
+        assertEquals(new Amount<>(250L, USD), balances.getBalances().get(USD));
+    }
+
+    @Test
+    public void updatesAddProducedAndSubtractConsumedCash() {
+        CashBalances balances = new CashBalances();
+        balances.load(snapshot(1_000L, "GBP"));
+
+        balances.apply(new Vault.Update<>(Collections.singleton(cash(Currencies.POUNDS(10))),
+                ImmutableSet.of(cash(Currencies.POUNDS(4)), cash(Currencies.DOLLARS(3)))));
+
+        assertEquals(400L, balances.getQuantity(GBP));
+        assertEquals(300L, balances.getQuantity(USD));
+    }
+
+    @Test
+    public void emptiedBalancesAreNotListed() {
+        CashBalances balances = new CashBalances();
+        balances.load(snapshot(1_000L, "GBP"));
+
+        balances.apply(new Vault.Update<>(Collections.singleton(cash(Currencies.POUNDS(10))), Collections.emptySet()));
+
+        assertEquals(0L, balances.getQuantity(GBP));
+        assertTrue(balances.getBalances().isEmpty());
+    }
+
+    @Test
+    public void readersNeverSeeHalfAnUpdate() throws Exception {
+        CashBalances balances = new CashBalances();
+        balances.load(snapshot(1_000L, "GBP"));
+        // Each update spends the whole balance and pays it back as change, so the balance never really moves.
+        Vault.Update<Cash.State> update = new Vault.Update<>(Collections.singleton(cash(Currencies.POUNDS(10))),
+                ImmutableSet.of(cash(Currencies.POUNDS(6)), cash(Currencies.POUNDS(4))));
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 100_000; i++) balances.apply(update);
+            done.set(true);
+        });
+
+        writer.start();
+        while (!done.get()) assertEquals(1_000L, balances.getQuantity(GBP));
+        writer.join();
+    }
+
+    private static Vault.Page<Cash.State> snapshot(Object... otherResults) {
+        return new Vault.Page<>(Collections.emptyList(), Collections.emptyList(), -1L, Vault.StateStatus.UNCONSUMED,
+                Arrays.asList(otherResults));
+    }
+
+    private static StateAndRef<Cash.State> cash(Amount<Currency> amount) {
+        Cash.State state = new Cash.State(Currencies.issuedBy(amount, MEGACORP.ref((byte) 1)), ALICE.getParty());
+        return new StateAndRef<>(new TransactionState<>(state, Cash.PROGRAM_ID, DUMMY.getParty()),
+                new StateRef(SecureHash.randomSHA256(), 0));
+    }
+}
@@ -0,0 +1,168 @@
+package net.corda.training.service;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.ReferencedStateAndRef;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.*;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.flow.CreditLimitFlow;
+import net.corda.training.flow.IOUIssueFlow;
+import net.corda.training.state.CreditLimitState;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the {@link ExposureService} holds each reservation against the borrower's limit until the issuance is
+ * recorded or abandoned, and checks it against the borrower's net exposure.
+ */
+public class ExposureServiceTests {
+    private static final Currency GBP = Currency.getInstance("GBP");
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode lender, borrower;
+
+    @Before
+    public void setup() {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(TestCordapp.findCordapp("net.corda.training"))
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        lender = mockNetwork.createNode(new MockNodeParameters());
+        borrower = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void reservationsCountAgainstTheLimitUntilReleased() {
+        ExposureService service = service();
+        SecureHash first = SecureHash.randomSHA256();
+        SecureHash second = SecureHash.randomSHA256();
+
+        assertTrue(service.reserve(first, draw(100, 6_000L)));
+        assertFalse(service.reserve(second, draw(100, 5_000L)));
+
+        service.release(first);
+        assertTrue(service.reserve(second, draw(100, 5_000L)));
+    }
+
+    @Test
+    public void reservationAboveTheLimitIsRejected() throws Exception {
+        issue(lender, Currencies.POUNDS(80), party(lender), party(borrower));
+        ExposureService service = service();
+
+        assertEquals(8_000L, service.getQuantity(party(borrower).getName(), GBP));
+        assertFalse(service.reserve(SecureHash.randomSHA256(), draw(100, 2_001L)));
+        assertTrue(service.reserve(SecureHash.randomSHA256(), draw(100, 2_000L)));
+    }
+
+    @Test
+    public void whatWeOweTheBorrowerIsSetOffAgainstItsLimit() throws Exception {
+        issue(lender, Currencies.POUNDS(80), party(lender), party(borrower));
+        issue(borrower, Currencies.POUNDS(30), party(borrower), party(lender));
+        ExposureService service = service();
+
+        assertEquals(5_000L, service.getQuantity(party(borrower).getName(), GBP));
+        assertTrue(service.reserve(SecureHash.randomSHA256(), draw(100, 5_000L)));
+    }
+
+    @Test
+    public void recordedIssuanceReleasesItsReservation() throws Exception {
+        run(lender.startFlow(new CreditLimitFlow.InitiatorFlow(party(borrower), Currencies.POUNDS(100))));
+
+        issue(borrower, Currencies.POUNDS(60), party(lender), party(borrower));
+
+        // The IOU is now counted in the exposure, so a reservation still held for it would count it twice.
+        ExposureService service = service();
+        assertEquals(6_000L, service.getQuantity(party(borrower).getName(), GBP));
+        assertTrue(service.reserve(SecureHash.randomSHA256(), draw(100, 4_000L)));
+    }
+
+    @Test
+    public void failedIssuanceReleasesItsReservation() throws Exception {
+        run(lender.startFlow(new CreditLimitFlow.InitiatorFlow(party(borrower), Currencies.POUNDS(100))));
+
+        run(borrower.startFlow(new AbandonedIssueFlow(new IOUState(Currencies.POUNDS(60), party(lender), party(borrower)))));
+
+        ExposureService service = service();
+        assertEquals(0L, service.getQuantity(party(borrower).getName(), GBP));
+        assertTrue(service.reserve(SecureHash.randomSHA256(), draw(100, 10_000L)));
+    }
+
+    /** Has the lender sign an issuance that draws on its credit limit, then ends without finalising it. */
+    @InitiatingFlow
+    public static class AbandonedIssueFlow extends FlowLogic<Void> {
+        private final IOUState state;
+
+        public AbandonedIssueFlow(IOUState state) {
+            this.state = state;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            StateAndRef<CreditLimitState> creditLimit = CreditLimitFlow.find(
+                    getServiceHub(), state.lender, state.borrower, state.amount.getToken());
+            TransactionBuilder builder = new TransactionBuilder(creditLimit.getState().getNotary())
+                    .addOutputState(state, IOUContract.IOU_CONTRACT_ID)
+                    .addCommand(new IOUContract.Commands.Issue(),
+                            state.lender.getOwningKey(), state.borrower.getOwningKey())
+                    .addReferenceState(new ReferencedStateAndRef<>(creditLimit));
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+            subFlow(new CollectSignaturesFlow(ptx, Collections.singletonList(initiateFlow(state.lender))));
+            return null;
+        }
+    }
+
+    @InitiatedBy(AbandonedIssueFlow.class)
+    public static class AbandonedIssueResponder extends IOUIssueFlow.ResponderFlow {
+        public AbandonedIssueResponder(FlowSession flowSession) {
+            super(flowSession);
+        }
+    }
+
+    private ExposureService service() {
+        return lender.getServices().cordaService(ExposureService.class);
+    }
+
+    /** Draws [quantity] pence on a limit of [limit] pounds from the lender to the borrower. */
+    private ImmutableMap<CreditLimitState, Long> draw(int limit, long quantity) {
+        return ImmutableMap.of(new CreditLimitState(party(lender), party(borrower), Currencies.POUNDS(limit)), quantity);
+    }
+
+    private void issue(StartedMockNode node, Amount<Currency> amount, Party iouLender, Party iouBorrower) throws Exception {
+        run(node.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(amount, iouLender, iouBorrower))));
+    }
+
+    private <T> T run(CordaFuture<T> future) throws Exception {
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+}
@@ -0,0 +1,108 @@
+package net.corda.training.service;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.services.Vault;
+import net.corda.finance.Currencies;
+import net.corda.testing.core.TestIdentity;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+
+import static net.corda.training.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link Exposures} are seeded from the aggregate snapshot and net what counterparties owe us against what
+ * we owe them as IOUs are issued, paid and settled.
+ */
+public class ExposuresTests {
+    private static final Currency GBP = Currency.getInstance("GBP");
+    private static final Currency USD = Currency.getInstance("USD");
+    private static final CordaX500Name ME = MEGACORP.getName();
+
+    @Test
+    public void exposuresAreSeededFromTheAggregateSnapshot() {
+        Exposures exposures = new Exposures(ME);
+
+        exposures.load(snapshot(
+                1_000L, ME, ALICE.getName(), "GBP",
+                300L, ALICE.getName(), ME, "GBP",
+                250L, BOB.getName(), ME, "USD"));
+
+        assertEquals(700L, exposures.getQuantity(ALICE.getName(), GBP));
+        assertEquals(-250L, exposures.getQuantity(BOB.getName(), USD));
+        assertEquals(0L, exposures.getQuantity(BOB.getName(), GBP));
+    }
+
+    @Test
+    public void whatWeOweIsNettedAgainstWhatWeAreOwed() {
+        Exposures exposures = new Exposures(ME);
+
+        exposures.apply(new Vault.Update<>(Collections.emptySet(), ImmutableSet.of(
+                iou(Currencies.POUNDS(10), MEGACORP, ALICE),
+                iou(Currencies.POUNDS(4), ALICE, MEGACORP),
+                iou(Currencies.DOLLARS(3), ALICE, MEGACORP))));
+
+        assertEquals(600L, exposures.getQuantity(ALICE.getName(), GBP));
+        assertEquals(-300L, exposures.getQuantity(ALICE.getName(), USD));
+        assertEquals(new BigDecimal("6.00"), exposures.getExposures().get(ALICE.getName().toString()).get(GBP));
+        assertEquals(new BigDecimal("-3.00"), exposures.getExposures().get(ALICE.getName().toString()).get(USD));
+    }
+
+    @Test
+    public void paymentsAndSettlementsReduceTheExposure() {
+        Exposures exposures = new Exposures(ME);
+        IOUState issued = new IOUState(Currencies.POUNDS(10), MEGACORP.getParty(), ALICE.getParty());
+        exposures.apply(new Vault.Update<>(Collections.emptySet(), Collections.singleton(iou(issued))));
+
+        IOUState paid = issued.pay(Currencies.POUNDS(4));
+        exposures.apply(new Vault.Update<>(Collections.singleton(iou(issued)), Collections.singleton(iou(paid))));
+        assertEquals(600L, exposures.getQuantity(ALICE.getName(), GBP));
+
+        exposures.apply(new Vault.Update<>(Collections.singleton(iou(paid)), Collections.emptySet()));
+        assertEquals(0L, exposures.getQuantity(ALICE.getName(), GBP));
+        assertTrue(exposures.getExposures().isEmpty());
+    }
+
+    @Test
+    public void iousBetweenOtherPartiesAreIgnored() {
+        Exposures exposures = new Exposures(ME);
+
+        exposures.apply(new Vault.Update<>(Collections.emptySet(),
+                Collections.singleton(iou(Currencies.POUNDS(10), ALICE, BOB))));
+
+        assertEquals(0L, exposures.getQuantity(ALICE.getName(), GBP));
+        assertEquals(0L, exposures.getQuantity(BOB.getName(), GBP));
+        assertTrue(exposures.getExposures().isEmpty());
+    }
+
+    /** The aggregate results are the summed quantity followed by the lender, borrower and currency code. */
+    private static Vault.Page<IOUState> snapshot(Object... rows) {
+        Object[] results = rows.clone();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] instanceof CordaX500Name) results[i] = results[i].toString();
+        }
+        return new Vault.Page<>(Collections.emptyList(), Collections.emptyList(), -1L, Vault.StateStatus.UNCONSUMED,
+                Arrays.asList(results));
+    }
+
+    private static StateAndRef<IOUState> iou(Amount<Currency> amount, TestIdentity lender, TestIdentity borrower) {
+        return iou(new IOUState(amount, lender.getParty(), borrower.getParty()));
+    }
+
+    private static StateAndRef<IOUState> iou(IOUState state) {
+        return new StateAndRef<>(new TransactionState<>(state, IOUContract.IOU_CONTRACT_ID, DUMMY.getParty()),
+                new StateRef(SecureHash.randomSHA256(), 0));
+    }
+}
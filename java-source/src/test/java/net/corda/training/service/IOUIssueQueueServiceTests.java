@@ -0,0 +1,129 @@
+package net.corda.training.service;
+
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.*;
+import net.corda.training.flow.IOUQueuedIssueFlow;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the {@link IOUIssueQueueService} flushes buckets by size and by window, hands each ticket the ref of its
+ * own IOU, and fails every ticket in a batch that fails.
+ */
+public class IOUIssueQueueServiceTests {
+    private MockNetwork mockNetwork;
+    private StartedMockNode borrower, lender;
+
+    private void setup(int maxBatchSize, long maxDelayMillis) {
+        setup(maxBatchSize, maxDelayMillis, 10_000);
+    }
+
+    private void setup(int maxBatchSize, long maxDelayMillis, int maxPending) {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(Arrays.asList(
+                TestCordapp.findCordapp("net.corda.training").withConfig(ImmutableMap.of(
+                        "issueQueue.maxBatchSize", maxBatchSize,
+                        "issueQueue.maxDelayMillis", maxDelayMillis,
+                        "issueQueue.maxPending", maxPending))
+        )).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))))
+                .withThreadPerNode(true));
+        borrower = mockNetwork.createNode(new MockNodeParameters());
+        lender = mockNetwork.createNode(new MockNodeParameters());
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void fullBucketIsIssuedAsOneBatchWithEachTicketAtItsOwnIndex() throws Exception {
+        // The window is far longer than the test waits, so only the bucket filling up can flush it.
+        setup(3, 600_000);
+        List<IOUState> states = Arrays.asList(iou(1), iou(2), iou(3));
+        List<CordaFuture<StateRef>> futures = new ArrayList<>();
+        for (IOUState state : states) futures.add(borrower.startFlow(new IOUQueuedIssueFlow.InitiatorFlow(state)));
+
+        List<StateRef> refs = new ArrayList<>();
+        for (CordaFuture<StateRef> future : futures) refs.add(future.get(30, TimeUnit.SECONDS));
+
+        for (int i = 0; i < states.size(); i++) {
+            assertEquals(refs.get(0).getTxhash(), refs.get(i).getTxhash());
+            assertEquals(states.get(i), issued(refs.get(i)));
+        }
+    }
+
+    @Test
+    public void partlyFilledBucketIsIssuedWhenItsWindowEnds() throws Exception {
+        setup(100, 100);
+        IOUState state = iou(5);
+
+        StateRef ref = borrower.startFlow(new IOUQueuedIssueFlow.InitiatorFlow(state)).get(30, TimeUnit.SECONDS);
+
+        assertEquals(0, ref.getIndex());
+        assertEquals(state, issued(ref));
+    }
+
+    @Test
+    public void oneRejectedIOUFailsEveryTicketInItsBatch() throws Exception {
+        setup(3, 600_000);
+        // An IOU of nothing fails the contract, and with it the batch.
+        List<IOUState> states = Arrays.asList(iou(1), iou(0), iou(3));
+        List<CordaFuture<StateRef>> futures = new ArrayList<>();
+        for (IOUState state : states) futures.add(borrower.startFlow(new IOUQueuedIssueFlow.InitiatorFlow(state)));
+
+        for (CordaFuture<StateRef> future : futures) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+                fail("Every ticket in a failed batch should fail.");
+            } catch (ExecutionException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void requestsBeyondTheQueueBoundAreRejected() throws Exception {
+        // Nothing is flushed while the test runs, so the first two requests stay queued.
+        setup(10, 600_000, 2);
+        borrower.startFlow(new IOUQueuedIssueFlow.InitiatorFlow(iou(1)));
+        borrower.startFlow(new IOUQueuedIssueFlow.InitiatorFlow(iou(2)));
+
+        try {
+            borrower.startFlow(new IOUQueuedIssueFlow.InitiatorFlow(iou(3))).get(30, TimeUnit.SECONDS);
+            fail("A request beyond the queue bound should be rejected.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("The issuance queue is full"));
+        }
+    }
+
+    private IOUState iou(int pounds) {
+        return new IOUState(Currencies.POUNDS(pounds), party(lender), party(borrower));
+    }
+
+    private IOUState issued(StateRef ref) {
+        return borrower.transaction(() -> borrower.getServices().getVaultService().queryBy(IOUState.class,
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, Collections.singletonList(ref)))
+                .getStates().get(0).getState().getData());
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+}
@@ -0,0 +1,50 @@
+package net.corda.training.state;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.finance.Currencies;
+import org.junit.Test;
+
+import static net.corda.training.TestUtils.ALICE;
+import static net.corda.training.TestUtils.BOB;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that an {@link IOUState} survives the round trip through its {@link IOUStateSerializer.Proxy} unchanged.
+ */
+public class IOUStateSerializerTests {
+    private final IOUStateSerializer serializer = new IOUStateSerializer();
+
+    @Test
+    public void stateRoundTripsThroughTheProxy() {
+        IOUState state = new IOUState(Currencies.POUNDS(10), BOB.getParty(), ALICE.getParty(), Currencies.POUNDS(4),
+                new UniqueIdentifier("invoice-17"));
+
+        IOUState copy = serializer.fromProxy(serializer.toProxy(state));
+
+        assertEquals(state.amount, copy.amount);
+        assertEquals(state.paid, copy.paid);
+        assertEquals(state.lender, copy.lender);
+        assertEquals(state.borrower, copy.borrower);
+        assertEquals(state.getLinearId(), copy.getLinearId());
+        assertEquals(state.getLinearId().getExternalId(), copy.getLinearId().getExternalId());
+    }
+
+    @Test
+    public void unpaidStateRoundTripsThroughTheProxy() {
+        IOUState state = new IOUState(Currencies.DOLLARS(25), BOB.getParty(), ALICE.getParty());
+
+        IOUState copy = serializer.fromProxy(serializer.toProxy(state));
+
+        assertEquals(Currencies.DOLLARS(25), copy.amount);
+        assertEquals(Currencies.DOLLARS(0), copy.paid);
+        assertEquals(state.getLinearId(), copy.getLinearId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void paidAmountInAnotherCurrencyIsRejected() {
+        IOUState state = new IOUState(Currencies.POUNDS(10), BOB.getParty(), ALICE.getParty(), Currencies.DOLLARS(4),
+                new UniqueIdentifier());
+
+        serializer.toProxy(state);
+    }
+}